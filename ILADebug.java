@@ -24,25 +24,69 @@
  * 
  */
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map.Entry;
-import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.BitSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.lang.String;
 import java.lang.StringBuilder;
 
@@ -56,7 +100,15 @@ import com.xilinx.rapidwright.debug.*;
 import com.xilinx.rapidwright.design.*;
 import com.xilinx.rapidwright.edif.*;
 import com.xilinx.rapidwright.router.Router;
+import com.xilinx.rapidwright.device.BEL;
 import com.xilinx.rapidwright.device.BELPin;
+import com.xilinx.rapidwright.device.ClockRegion;
+import com.xilinx.rapidwright.device.Device;
+import com.xilinx.rapidwright.device.Node;
+import com.xilinx.rapidwright.device.PIP;
+import com.xilinx.rapidwright.device.Site;
+import com.xilinx.rapidwright.device.SiteTypeEnum;
+import com.xilinx.rapidwright.device.Tile;
 import com.xilinx.rapidwright.design.blocks.PBlock;
 
 
@@ -152,110 +204,3135 @@ public class ILADebug {
         }
     }
     
-    // This comparator was taken directly from com/xilinx/rapidwright/util/StringTools.java
-    private static Comparator<String> naturalComparator;
-	static {
-		naturalComparator = new Comparator<String>() {
-			private boolean isDigit(char c){
-				return 0x30 <= c && c <= 0x39;
-			}
-			
-			@Override
-			public int compare(String a, String b){
-				int ai = 0, bi = 0;
-				while(ai < a.length() && bi < b.length()){
-					if(isDigit(a.charAt(ai)) && isDigit(b.charAt(bi))){
-						int aStart = ai, bStart = bi;
-						while(ai < a.length() && isDigit(a.charAt(ai))) ai++;
-						while(bi < b.length() && isDigit(b.charAt(bi))) bi++;
-						int aInt = Integer.parseInt(a.substring(aStart,ai));
-						int bInt = Integer.parseInt(b.substring(bStart,bi));
-						if(aInt != bInt) return aInt - bInt;
-					} else if(a.charAt(ai) != b.charAt(bi)) 
-						return a.charAt(ai) - b.charAt(bi);
-					ai++; bi++;
-				}
-				return a.length() - b.length();
-			}
-		};
+    static enum TCLEnum {
+        SOURCE_RW("source " + FileTools.getRapidWrightPath() + File.separator + FileTools.TCL_FOLDER_NAME
+                        + File.separator + "rapidwright.tcl", "qv", null),
+        OPEN_DCP("open_checkpoint", "qv", ".dcp"),
+        WRITE_DCP("write_checkpoint", "qvf", ".dcp"),
+        CLOSE_DESIGN("close_design", "qv", null),
+        PLACE("place_design", "qv", null),
+        ROUTE("route_design", "qv", null),
+        // a script written by ILADebug, such as the probe nets script (see writeProbeNetsScript())
+        SOURCE_TCL("source", "qv", ".tcl"),
+        ROUTE_PROBE_NETS("ila_route_probe_nets", "qv", null),
+        WRITE_EDIF("write_edif", "qvf", ".edf"),
+        WRITE_LTX("write_debug_probes", "qvf", ".ltx"),
+        WRITE_BITSTREAM("write_bitstream", "qvf", ".bit"),
+        CREATE_ILA_DCP("create_preimplemented_ila_dcp", "", ".dcp");
+
+        private final String command;
+        private final String options;
+        private final String extension;
+        private final String force = "-force";
+        private final String quiet = "-quiet";
+        private final String verbose = "-verbose";
+
+        TCLEnum(String command, String options, String extension){
+            this.command = command;
+            this.options = options;
+            this.extension = extension;
+        }
+        String ext(){return extension;}
+        String cmd(){return command;}
+        String cmd(String opts){
+            StringBuffer sb = new StringBuffer(command);
+            if(opts != null) {
+                for(int i = 0 ; i < opts.length() ; i++){
+                    if(options.indexOf(opts.charAt(i)) == -1)
+                        continue;
+                    switch(opts.charAt(i)){
+                        case 'f':
+                            sb.append(" " + force);
+                            break;
+                        case 'q':
+                            sb.append(" " + quiet);
+                            break;
+                        case 'v':
+                            sb.append(" " + verbose);
+                        default:
+                            break;
+                    }
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    static class TCLCommand {
+        TCLEnum tcl_cmd;
+        String options;
+        String filename;
+        String args;
+        
+        TCLCommand(TCLEnum tcl_cmd, String filename){
+            this(tcl_cmd, null, filename);
+        }
+        TCLCommand(TCLEnum tcl_cmd, String options, String filename){
+            this(tcl_cmd, options, filename, null);
+        }
+        /**
+         * @param args Extra arguments written after filename.
+         */
+        TCLCommand(TCLEnum tcl_cmd, String options, String filename, String args){
+            this.tcl_cmd = tcl_cmd;
+            this.options = options;
+            this.args = args;
+            if(tcl_cmd.ext() != null)
+                this.filename = FileTools.removeFileExtension(filename) + tcl_cmd.ext();
+            else
+                this.filename = null;
+        }
+        @Override
+        public String toString(){
+            String s = tcl_cmd.cmd(options);
+            if(filename != null && tcl_cmd.ext() != null)
+                s += " " + filename;
+            if(args != null)
+                s += " " + args;
+            return s;
+        }
+    }
+
+    /**
+     * Streams an edif file from an input stream to an output stream, replacing
+     *      (instance top (viewref <wrapper> (cellref <wrapper> (libraryref work)))
+     * with
+     *      (instance top (viewref netlist (cellref <wrapper> (libraryref work)))
+     * for any wrapper name. Only a small window of the edif is held in memory at a time.
+     */
+    static class EdifViewrefPatcher {
+        private static final byte[] PREFIX = "(instance top (viewref ".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CELLREF = " (cellref ".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] GOOD_VIEW = "netlist".getBytes(StandardCharsets.US_ASCII);
+        private static final int MAX_NAME = 1024;
+        private static final int WINDOW = 64 * 1024;
+        // results of matchAt()
+        private static final int NO_MATCH = -1;
+        private static final int NEED_MORE = -2;
+
+        // buffer holds a window plus enough room that the longest possible match always fits
+        private final byte[] buf = new byte[WINDOW + PREFIX.length + CELLREF.length + 2 * MAX_NAME + 1];
+        int replaced = 0;
+        long bytes_in = 0;
+        long bytes_out = 0;
+        String wrapper_name = null;
+
+        /**
+         * Copy in to out, patching the top instance viewref on the way. Neither stream is closed.
+         * @param in Stream to read edif from.
+         * @param out Stream to write patched edif to.
+         * @return Number of replacements made.
+         */
+        int patch(InputStream in, OutputStream out) throws IOException {
+            int len = 0;
+            boolean eof = false;
+            while(true){
+                // fill window
+                while(!eof && len < buf.length){
+                    int n = in.read(buf, len, buf.length - len);
+                    if(n < 0)
+                        eof = true;
+                    else {
+                        len += n;
+                        bytes_in += n;
+                    }
+                }
+
+                // replace all complete matches in window. Bytes before 'written' have been sent to out.
+                int written = 0;
+                int flush_to = -1;
+                int i = 0;
+                while(flush_to < 0){
+                    int idx = indexOf(buf, PREFIX, i, len);
+                    if(idx < 0){
+                        // keep a partial prefix at the end of the window for the next pass
+                        flush_to = eof ? len : Math.max(i, len - PREFIX.length + 1);
+                        break;
+                    }
+                    int name_len = matchAt(idx, len, eof);
+                    if(name_len == NEED_MORE){
+                        flush_to = idx;
+                    }
+                    else if(name_len == NO_MATCH){
+                        i = idx + 1;
+                    }
+                    else {
+                        int name_start = idx + PREFIX.length;
+                        wrapper_name = new String(buf, name_start, name_len, StandardCharsets.US_ASCII);
+                        write(out, written, name_start);
+                        out.write(GOOD_VIEW);
+                        bytes_out += GOOD_VIEW.length;
+                        written = name_start + name_len;
+                        i = written;
+                        replaced++;
+                    }
+                }
+                write(out, written, Math.max(written, flush_to));
+                int keep_from = Math.max(written, flush_to);
+                System.arraycopy(buf, keep_from, buf, 0, len - keep_from);
+                len -= keep_from;
+
+                if(eof && len == 0)
+                    break;
+            }
+            return replaced;
+        }
+
+        private void write(OutputStream out, int from, int to) throws IOException {
+            if(to > from){
+                out.write(buf, from, to - from);
+                bytes_out += to - from;
+            }
+        }
+
+        /**
+         * Checks whether buf[idx, len) starts with a full top instance line that needs patching.
+         * @return Length of the wrapper name, NO_MATCH, or NEED_MORE if the window ends before it can be decided.
+         */
+        private int matchAt(int idx, int len, boolean eof){
+            int name_start = idx + PREFIX.length;
+            int p = name_start;
+            while(p < len && isNameChar(buf[p]) && p - name_start <= MAX_NAME)
+                p++;
+            if(p == len)
+                return eof ? NO_MATCH : NEED_MORE;
+            int name_len = p - name_start;
+            if(name_len == 0 || name_len > MAX_NAME)
+                return NO_MATCH;
+            if(name_len == GOOD_VIEW.length && indexOf(buf, GOOD_VIEW, name_start, p) == name_start)
+                return NO_MATCH; // already fixed
+
+            // ' (cellref <wrapper>' must follow
+            for(int j = 0 ; j < CELLREF.length + name_len + 1 ; j++, p++){
+                if(p >= len)
+                    return eof ? NO_MATCH : NEED_MORE;
+                byte expected;
+                if(j < CELLREF.length)
+                    expected = CELLREF[j];
+                else if(j < CELLREF.length + name_len)
+                    expected = buf[name_start + j - CELLREF.length];
+                else
+                    return isNameChar(buf[p]) ? NO_MATCH : name_len;
+                if(buf[p] != expected)
+                    return NO_MATCH;
+            }
+            return NO_MATCH;
+        }
+
+        private static boolean isNameChar(byte b){
+            return b > ' ' && b != '(' && b != ')';
+        }
+
+        private static int indexOf(byte[] b, byte[] pattern, int from, int to){
+            outer:
+            for(int i = from ; i <= to - pattern.length ; i++){
+                for(int j = 0 ; j < pattern.length ; j++)
+                    if(b[i + j] != pattern[j])
+                        continue outer;
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Rewrites a design checkpoint (a zip archive). Entries with a registered editor are inflated,
+     * passed through the editor and recompressed. All other entries are located through the central
+     * directory of the input and copied as raw compressed bytes, so they are never inflated.
+     */
+    static class DcpArchiveRewriter {
+        interface EntryEditor {
+            /**
+             * @param name Name of the entry being edited.
+             * @param in Uncompressed contents of the entry.
+             * @param out Stream to write the new uncompressed contents to. Must not be closed.
+             */
+            void edit(String name, InputStream in, OutputStream out) throws IOException;
+        }
+
+        /**
+         * One record of a zip central directory. Zip64 values have already been resolved and the
+         * zip64 extra field has been removed from extra.
+         */
+        static class CenEntry {
+            int version_made;
+            int version_needed;
+            int flags;
+            int method;
+            int dostime;
+            int int_attr;
+            long ext_attr;
+            long crc;
+            long csize;
+            long size;
+            long offset;
+            byte[] name;
+            byte[] extra;
+            byte[] comment;
+
+            String getName(){
+                return new String(name, StandardCharsets.UTF_8);
+            }
+        }
+
+        private static final int LOC_SIG = 0x04034b50;
+        private static final int CEN_SIG = 0x02014b50;
+        private static final int END_SIG = 0x06054b50;
+        private static final int ZIP64_END_SIG = 0x06064b50;
+        private static final int ZIP64_LOC_SIG = 0x07064b50;
+        private static final int EXT_SIG = 0x08074b50;
+        private static final int LOC_HDR = 30;
+        private static final int CEN_HDR = 46;
+        private static final int END_HDR = 22;
+        private static final int ZIP64_END_HDR = 56;
+        private static final int ZIP64_LOC_HDR = 20;
+        private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+        // entries this large get zip64 local headers when edited, leaving room for the edit to grow them
+        private static final long ZIP64_EDIT_SIZE = ZIP64_MAGIC / 2;
+        private static final int ZIP64_EXTRA_ID = 0x0001;
+        private static final int FLAG_DESCRIPTOR = 0x08;
+        private static final int FLAG_UTF8 = 0x800;
+
+        private final List<String> edit_suffixes = new ArrayList<>();
+        private final List<EntryEditor> editors = new ArrayList<>();
+        int raw_entries = 0;
+        long raw_bytes = 0;
+        int edited_entries = 0;
+        long edited_bytes = 0;
+
+        /**
+         * Register an editor for all entries whose name ends with suffix. The first matching editor is used.
+         */
+        DcpArchiveRewriter edit(String suffix, EntryEditor editor){
+            edit_suffixes.add(suffix);
+            editors.add(editor);
+            return this;
+        }
+
+        private EntryEditor getEditor(String name){
+            for(int i = 0 ; i < edit_suffixes.size() ; i++)
+                if(name.endsWith(edit_suffixes.get(i)))
+                    return editors.get(i);
+            return null;
+        }
+
+        /**
+         * Write a copy of input_dcp to output_dcp, applying the registered editors.
+         * The archive comment of the input is kept.
+         */
+        void rewrite(File input_dcp, File output_dcp) throws IOException {
+            try(FileInputStream fis = new FileInputStream(input_dcp);
+                    FileOutputStream fos = new FileOutputStream(output_dcp);
+                    ZipFile zf = new ZipFile(input_dcp)){
+                FileChannel in = fis.getChannel();
+                FileChannel out = fos.getChannel();
+                byte[][] archive_comment = new byte[1][];
+                List<CenEntry> entries = readCentralDirectory(in, archive_comment);
+
+                for(CenEntry e : entries){
+                    EntryEditor editor = getEditor(e.getName());
+                    if(editor == null)
+                        copyRaw(in, out, e);
+                    else
+                        copyEdited(zf, out, e, editor);
+                }
+                writeCentralDirectory(out, entries, archive_comment[0]);
+            }
+        }
+
+        /**
+         * Copy local header, compressed data and data descriptor of an entry without inflating it.
+         */
+        private void copyRaw(FileChannel in, FileChannel out, CenEntry e) throws IOException {
+            ByteBuffer loc = read(in, e.offset, LOC_HDR);
+            if(loc.getInt(0) != LOC_SIG)
+                throw new ZipException("Bad local header for entry '" + e.getName() + "'.");
+            int name_len = loc.getShort(26) & 0xFFFF;
+            int extra_len = loc.getShort(28) & 0xFFFF;
+            boolean loc_zip64 = findExtra(read(in, e.offset + LOC_HDR + name_len, extra_len), ZIP64_EXTRA_ID) >= 0;
+
+            long new_offset = out.position();
+            long count = LOC_HDR + name_len + extra_len + e.csize;
+            for(long done = 0 ; done < count ; )
+                done += in.transferTo(e.offset + done, count - done, out);
+            if((e.flags & FLAG_DESCRIPTOR) != 0)
+                writeDescriptor(out, e, loc_zip64 || e.csize >= ZIP64_MAGIC || e.size >= ZIP64_MAGIC);
+
+            e.offset = new_offset;
+            raw_entries++;
+            raw_bytes += e.csize;
+        }
+
+        /**
+         * Inflate an entry, pass it through editor and write it back deflated. The crc and sizes are only known
+         * once the entry is written, so they are patched into its local header then, and no data descriptor is
+         * written. An entry that may reach 4 GiB (over ZIP64_EDIT_SIZE before editing) gets a zip64 extra field
+         * in its local header for its sizes, which readers use to decide how to read the entry.
+         */
+        private void copyEdited(ZipFile zf, FileChannel out, CenEntry e, EntryEditor editor) throws IOException {
+            long new_offset = out.position();
+            boolean zip64 = e.size >= ZIP64_EDIT_SIZE || e.csize >= ZIP64_EDIT_SIZE;
+            e.flags = e.flags & FLAG_UTF8;
+            e.method = ZipEntry.DEFLATED;
+            e.version_needed = zip64 ? 45 : 20;
+
+            int extra_len = zip64 ? 20 : 0;
+            ByteBuffer loc = newBuffer(LOC_HDR + e.name.length + extra_len);
+            loc.putInt(LOC_SIG).putShort((short) e.version_needed).putShort((short) e.flags)
+                    .putShort((short) e.method).putInt(e.dostime)
+                    .putInt(0).putInt(0).putInt(0) // crc and sizes are patched in below
+                    .putShort((short) e.name.length).putShort((short) extra_len).put(e.name);
+            if(zip64)
+                loc.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0);
+            write(out, loc);
+
+            // out must stay open, so none of these streams are closed
+            Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            BufferedOutputStream raw = new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16);
+            DeflaterOutputStream dos = new DeflaterOutputStream(raw, def, 1 << 16);
+            CheckedOutputStream cos = new CheckedOutputStream(dos, new CRC32());
+            try(InputStream is = zf.getInputStream(zf.getEntry(e.getName()))){
+                editor.edit(e.getName(), is, cos);
+                dos.finish();
+                raw.flush();
+                e.crc = cos.getChecksum().getValue();
+                e.size = def.getBytesRead();
+                e.csize = def.getBytesWritten();
+            } finally {
+                def.end();
+            }
+            if(!zip64 && (e.size >= ZIP64_MAGIC || e.csize >= ZIP64_MAGIC))
+                throw new ZipException("Edited entry '" + e.getName() + "' grew past 4 GiB.");
+
+            ByteBuffer sizes = newBuffer(12);
+            sizes.putInt((int) e.crc).putInt((int) (zip64 ? ZIP64_MAGIC : e.csize))
+                    .putInt((int) (zip64 ? ZIP64_MAGIC : e.size));
+            writeAt(out, sizes, new_offset + 14);
+            if(zip64){
+                ByteBuffer sizes64 = newBuffer(16);
+                sizes64.putLong(e.size).putLong(e.csize);
+                writeAt(out, sizes64, new_offset + LOC_HDR + e.name.length + 4);
+            }
+
+            e.offset = new_offset;
+            edited_entries++;
+            edited_bytes += e.size;
+        }
+
+        /**
+         * @param zip64 The local header of e has a zip64 extra field, so the sizes are written as 8 bytes.
+         */
+        private static void writeDescriptor(FileChannel out, CenEntry e, boolean zip64) throws IOException {
+            ByteBuffer ext = newBuffer(zip64 ? 24 : 16);
+            ext.putInt(EXT_SIG).putInt((int) e.crc);
+            if(zip64)
+                ext.putLong(e.csize).putLong(e.size);
+            else
+                ext.putInt((int) e.csize).putInt((int) e.size);
+            write(out, ext);
+        }
+
+        /**
+         * Read the central directory of a zip archive.
+         * @param ch Channel of the archive.
+         * @param archive_comment If not null, element 0 is set to the archive comment.
+         * @return Entries in central directory order.
+         */
+        static List<CenEntry> readCentralDirectory(FileChannel ch, byte[][] archive_comment) throws IOException {
+            long size = ch.size();
+            long scan_from = Math.max(0, size - END_HDR - 0xFFFF);
+            ByteBuffer tail = read(ch, scan_from, (int) (size - scan_from));
+            int end = -1;
+            for(int i = tail.limit() - END_HDR ; i >= 0 ; i--){
+                if(tail.getInt(i) == END_SIG && i + END_HDR + (tail.getShort(i + 20) & 0xFFFF) == tail.limit()){
+                    end = i;
+                    break;
+                }
+            }
+            if(end < 0)
+                throw new ZipException("No end of central directory record found.");
+
+            long total = tail.getShort(end + 10) & 0xFFFF;
+            long cen_size = tail.getInt(end + 12) & ZIP64_MAGIC;
+            long cen_offset = tail.getInt(end + 16) & ZIP64_MAGIC;
+            if(archive_comment != null){
+                archive_comment[0] = new byte[tail.getShort(end + 20) & 0xFFFF];
+                tail.position(end + END_HDR);
+                tail.get(archive_comment[0]);
+            }
+            long end_pos = scan_from + end;
+            if(end_pos >= ZIP64_LOC_HDR && (total == 0xFFFF || cen_size == ZIP64_MAGIC || cen_offset == ZIP64_MAGIC)){
+                ByteBuffer locator = read(ch, end_pos - ZIP64_LOC_HDR, ZIP64_LOC_HDR);
+                if(locator.getInt(0) == ZIP64_LOC_SIG){
+                    ByteBuffer end64 = read(ch, locator.getLong(8), ZIP64_END_HDR);
+                    if(end64.getInt(0) != ZIP64_END_SIG)
+                        throw new ZipException("Bad zip64 end of central directory record.");
+                    total = end64.getLong(32);
+                    cen_size = end64.getLong(40);
+                    cen_offset = end64.getLong(48);
+                }
+            }
+            if(cen_size > Integer.MAX_VALUE)
+                throw new ZipException("Central directory too large.");
+
+            ByteBuffer cen = read(ch, cen_offset, (int) cen_size);
+            List<CenEntry> entries = new ArrayList<>();
+            int p = 0;
+            for(long n = 0 ; n < total ; n++){
+                if(cen.getInt(p) != CEN_SIG)
+                    throw new ZipException("Bad central directory header at entry " + n + ".");
+                CenEntry e = new CenEntry();
+                e.version_made = cen.getShort(p + 4) & 0xFFFF;
+                e.version_needed = cen.getShort(p + 6) & 0xFFFF;
+                e.flags = cen.getShort(p + 8) & 0xFFFF;
+                e.method = cen.getShort(p + 10) & 0xFFFF;
+                e.dostime = cen.getInt(p + 12);
+                e.crc = cen.getInt(p + 16) & ZIP64_MAGIC;
+                e.csize = cen.getInt(p + 20) & ZIP64_MAGIC;
+                e.size = cen.getInt(p + 24) & ZIP64_MAGIC;
+                int name_len = cen.getShort(p + 28) & 0xFFFF;
+                int extra_len = cen.getShort(p + 30) & 0xFFFF;
+                int comment_len = cen.getShort(p + 32) & 0xFFFF;
+                e.int_attr = cen.getShort(p + 36) & 0xFFFF;
+                e.ext_attr = cen.getInt(p + 38) & ZIP64_MAGIC;
+                e.offset = cen.getInt(p + 42) & ZIP64_MAGIC;
+                e.name = new byte[name_len];
+                byte[] extra = new byte[extra_len];
+                e.comment = new byte[comment_len];
+                cen.position(p + CEN_HDR);
+                cen.get(e.name).get(extra).get(e.comment);
+                e.extra = readZip64Extra(e, extra);
+                entries.add(e);
+                p += CEN_HDR + name_len + extra_len + comment_len;
+            }
+            return entries;
+        }
+
+        /**
+         * Replace zip64 placeholder values in e with those from the zip64 extra field.
+         * @return extra with the zip64 field removed.
+         */
+        private static byte[] readZip64Extra(CenEntry e, byte[] extra){
+            ByteBuffer b = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+            int start = findExtra(b, ZIP64_EXTRA_ID);
+            if(start < 0)
+                return extra;
+            int len = b.getShort(start + 2) & 0xFFFF;
+            int p = start + 4;
+            if(e.size == ZIP64_MAGIC && p + 8 <= start + 4 + len){
+                e.size = b.getLong(p);
+                p += 8;
+            }
+            if(e.csize == ZIP64_MAGIC && p + 8 <= start + 4 + len){
+                e.csize = b.getLong(p);
+                p += 8;
+            }
+            if(e.offset == ZIP64_MAGIC && p + 8 <= start + 4 + len)
+                e.offset = b.getLong(p);
+
+            byte[] stripped = new byte[extra.length - 4 - len];
+            System.arraycopy(extra, 0, stripped, 0, start);
+            System.arraycopy(extra, start + 4 + len, stripped, start, extra.length - start - 4 - len);
+            return stripped;
+        }
+
+        /**
+         * @return Position of the extra field block with the given id or -1.
+         */
+        private static int findExtra(ByteBuffer extra, int id){
+            int p = 0;
+            while(p + 4 <= extra.limit()){
+                if((extra.getShort(p) & 0xFFFF) == id)
+                    return p;
+                p += 4 + (extra.getShort(p + 2) & 0xFFFF);
+            }
+            return -1;
+        }
+
+        private static void writeCentralDirectory(FileChannel out, List<CenEntry> entries, byte[] archive_comment)
+                throws IOException {
+            long cen_offset = out.position();
+            for(CenEntry e : entries){
+                boolean big_size = e.size >= ZIP64_MAGIC;
+                boolean big_csize = e.csize >= ZIP64_MAGIC;
+                boolean big_offset = e.offset >= ZIP64_MAGIC;
+                int zip64_len = (big_size ? 8 : 0) + (big_csize ? 8 : 0) + (big_offset ? 8 : 0);
+                int extra_len = e.extra.length + (zip64_len > 0 ? 4 + zip64_len : 0);
+
+                ByteBuffer cen = newBuffer(CEN_HDR + e.name.length + extra_len + e.comment.length);
+                cen.putInt(CEN_SIG).putShort((short) e.version_made)
+                        .putShort((short) (zip64_len > 0 ? Math.max(45, e.version_needed) : e.version_needed))
+                        .putShort((short) e.flags).putShort((short) e.method).putInt(e.dostime).putInt((int) e.crc)
+                        .putInt((int) (big_csize ? ZIP64_MAGIC : e.csize))
+                        .putInt((int) (big_size ? ZIP64_MAGIC : e.size))
+                        .putShort((short) e.name.length).putShort((short) extra_len).putShort((short) e.comment.length)
+                        .putShort((short) 0).putShort((short) e.int_attr).putInt((int) e.ext_attr)
+                        .putInt((int) (big_offset ? ZIP64_MAGIC : e.offset))
+                        .put(e.name);
+                if(zip64_len > 0){
+                    cen.putShort((short) ZIP64_EXTRA_ID).putShort((short) zip64_len);
+                    if(big_size)
+                        cen.putLong(e.size);
+                    if(big_csize)
+                        cen.putLong(e.csize);
+                    if(big_offset)
+                        cen.putLong(e.offset);
+                }
+                cen.put(e.extra).put(e.comment);
+                write(out, cen);
+            }
+            long cen_size = out.position() - cen_offset;
+
+            boolean zip64 = entries.size() >= 0xFFFF || cen_offset >= ZIP64_MAGIC || cen_size >= ZIP64_MAGIC;
+            if(zip64){
+                long end64_offset = out.position();
+                ByteBuffer end64 = newBuffer(ZIP64_END_HDR + ZIP64_LOC_HDR);
+                end64.putInt(ZIP64_END_SIG).putLong(ZIP64_END_HDR - 12).putShort((short) 45).putShort((short) 45)
+                        .putInt(0).putInt(0).putLong(entries.size()).putLong(entries.size())
+                        .putLong(cen_size).putLong(cen_offset);
+                end64.putInt(ZIP64_LOC_SIG).putInt(0).putLong(end64_offset).putInt(1);
+                write(out, end64);
+            }
+            ByteBuffer end = newBuffer(END_HDR + archive_comment.length);
+            short count = (short) Math.min(entries.size(), 0xFFFF);
+            end.putInt(END_SIG).putShort((short) 0).putShort((short) 0).putShort(count).putShort(count)
+                    .putInt((int) Math.min(cen_size, ZIP64_MAGIC)).putInt((int) Math.min(cen_offset, ZIP64_MAGIC))
+                    .putShort((short) archive_comment.length).put(archive_comment);
+            write(out, end);
+        }
+
+        /**
+         * Opens an entry found by readCentralDirectory() for reading, without a ZipFile. Reads are positional,
+         * so several entries of ch can be read at once and ch's position isn't used.
+         * @return Stream of the uncompressed contents of e. Closing it doesn't close ch.
+         */
+        static InputStream openEntry(FileChannel ch, CenEntry e) throws IOException {
+            ByteBuffer loc = read(ch, e.offset, LOC_HDR);
+            if(loc.getInt(0) != LOC_SIG)
+                throw new ZipException("Bad local header for entry '" + e.getName() + "'.");
+            long start = e.offset + LOC_HDR + (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF);
+            if(e.method == ZipEntry.STORED)
+                return new RangeInputStream(ch, start, e.csize, false);
+            if(e.method != ZipEntry.DEFLATED)
+                throw new ZipException("Unsupported compression method " + e.method + " of entry '" + e.getName() + "'.");
+            Inflater inf = new Inflater(true);
+            return new InflaterInputStream(new RangeInputStream(ch, start, e.csize, true), inf, 1 << 16){
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+
+        /**
+         * Bytes [start, start+count) of a channel. A raw deflate stream may need a byte past its end to
+         * finish, as ZipFile gives it, so pad adds a zero byte.
+         */
+        private static class RangeInputStream extends InputStream {
+            private final FileChannel ch;
+            private long pos;
+            private long left;
+            private boolean pad;
+
+            RangeInputStream(FileChannel ch, long start, long count, boolean pad){
+                this.ch = ch;
+                pos = start;
+                left = count;
+                this.pad = pad;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0)
+                    return 0;
+                if(left == 0){
+                    if(!pad)
+                        return -1;
+                    pad = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                int n = ch.read(ByteBuffer.wrap(b, off, (int) Math.min(len, left)), pos);
+                if(n < 0)
+                    throw new EOFException("Unexpected end of zip archive.");
+                pos += n;
+                left -= n;
+                return n;
+            }
+        }
+
+        private static ByteBuffer newBuffer(int len){
+            return ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+            ByteBuffer b = newBuffer(len);
+            while(b.hasRemaining())
+                if(ch.read(b, pos + b.position()) < 0)
+                    throw new EOFException("Unexpected end of zip archive.");
+            b.flip();
+            return b;
+        }
+
+        private static void writeAt(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+            b.flip();
+            while(b.hasRemaining())
+                pos += ch.write(b, pos);
+        }
+
+        private static void write(FileChannel ch, ByteBuffer b) throws IOException {
+            b.flip();
+            while(b.hasRemaining())
+                ch.write(b);
+        }
+    }
+
+    /**
+     * Finds the nets marked for debug in a checkpoint without loading it into RapidWright. The archive is read
+     * through its central directory (see DcpArchiveRewriter) and only the edif and xdc entries are inflated,
+     * as streams. The edif is tokenized once, keeping just the instances of each cell and the nets of each cell
+     * with a true mark_debug property; these are expanded to hierarchical names from the top cell afterwards.
+     * Nets marked by name in the xdc are added. Xdc that marks nets through a pattern or query can't be resolved
+     * without a netlist, so the scan gives up (reason says why) and the checkpoint has to be loaded.
+     */
+    static class MarkDebugScanner {
+        static final String MARK_DEBUG = "mark_debug";
+        private static final Pattern XDC_MARK = Pattern.compile(
+                "\\s*set_property\\s+mark_debug\\s+[{\"]?(\\w+)[}\"]?\\s+\\[get_nets\\s+([^\\[\\]]*)\\]\\s*(#.*)?",
+                Pattern.CASE_INSENSITIVE);
+        private static final int EOF = -1, OPEN = 0, CLOSE = 1, ATOM = 2;
+        // lists whose atoms are read
+        private static final Set<String> NAMED = new HashSet<>(Arrays.asList("rename", "string", "boolean", "library",
+                "external", "cell", "instance", "net", "design", "cellref", "libraryref", "property"));
+
+        private static class EdifCell {
+            final List<String[]> insts = new ArrayList<>();   // instance name, library, cell
+            final List<String> nets = new ArrayList<>();      // nets marked for debug
+            Boolean marked_below = null;
+        }
+
+        // one open list of the edif: its keyword, first element (name) and what's been found in it
+        private static class Frame {
+            final String kw;
+            String name = null;
+            String value = null;
+            String lib = null;
+            String cell = null;
+            boolean marked = false;
+            EdifCell edif_cell = null;
+
+            Frame(String kw){
+                this.kw = kw;
+            }
+        }
+
+        private final Map<String, EdifCell> cells = new HashMap<>();
+        private String top = null;      // library/cell of the design
+        private final Set<String> xdc_nets = new LinkedHashSet<>();
+        private final Set<String> xdc_unmarked = new HashSet<>();
+        private InputStream in;
+        private final byte[] buf = new byte[1 << 16];
+        private int pos = 0, len = 0;
+        private byte[] tok = new byte[256];
+        private int tok_len = 0;
+        long bytes = 0;
+        long ns = 0;
+        String reason = null;
+
+        /**
+         * @return Hierarchical names of the nets marked for debug in dcp, or null if the scan gave up.
+         */
+        List<String> scan(File dcp) throws IOException {
+            long start = System.nanoTime();
+            boolean found_edif = false;
+            try(FileInputStream fis = new FileInputStream(dcp)){
+                FileChannel ch = fis.getChannel();
+                for(DcpArchiveRewriter.CenEntry e : DcpArchiveRewriter.readCentralDirectory(ch, null)){
+                    String name = e.getName();
+                    if(!name.endsWith(".edf") && !name.endsWith(".xdc"))
+                        continue;
+                    try(InputStream is = DcpArchiveRewriter.openEntry(ch, e)){
+                        if(name.endsWith(".edf")){
+                            found_edif = true;
+                            parseEdif(is);
+                        }
+                        else if(!parseXdc(is, name))
+                            return null;
+                    }
+                }
+            } finally {
+                ns = System.nanoTime() - start;
+            }
+            if(!found_edif || top == null){
+                reason = found_edif ? "the edif has no design" : "the checkpoint has no edif";
+                return null;
+            }
+            Set<String> nets = new LinkedHashSet<>();
+            expand(top, "", nets);
+            nets.addAll(xdc_nets);
+            nets.removeAll(xdc_unmarked);
+            return new ArrayList<>(nets);
+        }
+
+        private void expand(String key, String prefix, Set<String> nets){
+            EdifCell c = cells.get(key);
+            if(c == null)
+                return;
+            for(String net : c.nets)
+                nets.add(prefix + net);
+            for(String[] inst : c.insts){
+                String child = inst[1] + "/" + inst[2];
+                if(markedBelow(child))
+                    expand(child, prefix + inst[0] + EDIFTools.EDIF_HIER_SEP, nets);
+            }
+        }
+
+        private boolean markedBelow(String key){
+            EdifCell c = cells.get(key);
+            if(c == null)
+                return false;
+            if(c.marked_below == null){
+                boolean marked = !c.nets.isEmpty();
+                for(int i = 0 ; i < c.insts.size() && !marked ; i++)
+                    marked = markedBelow(c.insts.get(i)[1] + "/" + c.insts.get(i)[2]);
+                c.marked_below = marked;
+            }
+            return c.marked_below;
+        }
+
+        /**
+         * Reads the libraries, cells, instances, nets and properties of an edif. Other lists are skipped over.
+         */
+        private void parseEdif(InputStream is) throws IOException {
+            in = is;
+            pos = len = 0;
+            ArrayDeque<Frame> stack = new ArrayDeque<>();
+            for(int t = next() ; t != EOF ; t = next()){
+                if(t == OPEN){
+                    if(next() != ATOM)
+                        throw new IOException("Malformed edif: list without a keyword.");
+                    Frame f = new Frame(token().toLowerCase());
+                    if(f.kw.equals("cell"))
+                        f.edif_cell = new EdifCell();
+                    stack.push(f);
+                    continue;
+                }
+                Frame f = stack.peek();
+                if(f == null)
+                    throw new IOException("Malformed edif: unbalanced parentheses.");
+                if(t == ATOM){
+                    // most atoms (port and instance references) aren't needed, so aren't made into strings
+                    if(!NAMED.contains(f.kw))
+                        continue;
+                    if(f.name == null)
+                        f.name = token();
+                    else if(f.kw.equals("rename") || f.kw.equals("string"))
+                        f.value = token();
+                    continue;
+                }
+
+                // t == CLOSE
+                stack.pop();
+                Frame parent = stack.peek();
+                switch(f.kw){
+                    case "rename":
+                        // cellref and libraryref use the edif identifier, hierarchical names the original name
+                        if(parent != null && parent.name == null)
+                            parent.name = (f.value != null && (parent.kw.equals("net") || parent.kw.equals("instance")))
+                                    ? f.value : f.name;
+                        break;
+                    case "string":
+                    case "boolean":
+                        if(parent != null)
+                            parent.value = (f.value != null) ? f.value : f.name;
+                        break;
+                    case "true":
+                        if(parent != null)
+                            parent.value = "true";
+                        break;
+                    case "property":
+                        if(parent != null && parent.kw.equals("net") && MARK_DEBUG.equalsIgnoreCase(f.name)
+                                && "true".equalsIgnoreCase(f.value))
+                            parent.marked = true;
+                        break;
+                    case "libraryref":
+                        if(parent != null)
+                            parent.lib = f.name;
+                        break;
+                    case "cellref":
+                        for(Frame a : stack){
+                            if(a.kw.equals("instance") || a.kw.equals("design")){
+                                a.cell = f.name;
+                                a.lib = (f.lib != null) ? f.lib : library(stack);
+                                break;
+                            }
+                        }
+                        break;
+                    case "instance":
+                    case "net":
+                        for(Frame a : stack){
+                            if(a.edif_cell == null)
+                                continue;
+                            if(f.kw.equals("instance") && f.cell != null)
+                                a.edif_cell.insts.add(new String[]{f.name, f.lib, f.cell});
+                            else if(f.kw.equals("net") && f.marked)
+                                a.edif_cell.nets.add(f.name);
+                            break;
+                        }
+                        break;
+                    case "cell":
+                        cells.put(library(stack) + "/" + f.name, f.edif_cell);
+                        break;
+                    case "design":
+                        top = f.lib + "/" + f.cell;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if(!stack.isEmpty())
+                throw new IOException("Malformed edif: " + stack.size() + " list(s) not closed.");
+        }
+
+        /**
+         * @return Name of the library (or external library) the innermost open list is in.
+         */
+        private static String library(ArrayDeque<Frame> stack){
+            for(Frame a : stack)
+                if(a.kw.equals("library") || a.kw.equals("external"))
+                    return a.name;
+            return null;
+        }
+
+        /**
+         * Reads set_property mark_debug lines that name their nets.
+         * @return False if a line marks nets in a way that can't be resolved without a netlist.
+         */
+        private boolean parseXdc(InputStream is, String entry) throws IOException {
+            BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String line;
+            while((line = br.readLine()) != null){
+                bytes += line.length() + 1;
+                if(!line.toLowerCase().contains(MARK_DEBUG) || line.trim().startsWith("#"))
+                    continue;
+                Matcher m = XDC_MARK.matcher(line);
+                String objects = m.matches() ? m.group(2).trim() : null;
+                if(objects == null || objects.startsWith("-") || objects.contains("*") || objects.contains("?")){
+                    reason = entry + " marks nets for debug with '" + line.trim() + "'";
+                    return false;
+                }
+                boolean mark = m.group(1).equalsIgnoreCase("true") || m.group(1).equals("1");
+                for(String net : objects.replace("{", " ").replace("}", " ").trim().split("\\s+")){
+                    if(mark){
+                        xdc_nets.add(net);
+                        xdc_unmarked.remove(net);
+                    }
+                    else {
+                        xdc_nets.remove(net);
+                        xdc_unmarked.add(net);
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the next token of the edif: OPEN, CLOSE, ATOM (see token(); strings lose their quotes) or EOF.
+         */
+        private int next() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while(c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            if(c < 0)
+                return EOF;
+            if(c == '(')
+                return OPEN;
+            if(c == ')')
+                return CLOSE;
+            int n = 0;
+            if(c == '"'){
+                while((c = read()) >= 0 && c != '"')
+                    n = append(n, c);
+            }
+            else {
+                n = append(n, c);
+                while((c = read()) >= 0 && c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != '(' && c != ')')
+                    n = append(n, c);
+                if(c == '(' || c == ')')
+                    pos--;
+            }
+            tok_len = n;
+            return ATOM;
+        }
+
+        /**
+         * @return The last atom read by next().
+         */
+        private String token(){
+            return new String(tok, 0, tok_len, StandardCharsets.UTF_8);
+        }
+
+        private int append(int n, int c){
+            if(n == tok.length)
+                tok = Arrays.copyOf(tok, 2 * n);
+            tok[n] = (byte) c;
+            return n + 1;
+        }
+
+        private int read() throws IOException {
+            if(pos == len){
+                // scans run next to the design load and are cancelled if it makes them unneeded
+                if(Thread.interrupted())
+                    throw new InterruptedIOException("Scan for nets marked for debug cancelled.");
+                len = in.read(buf, 0, buf.length);
+                pos = 0;
+                if(len <= 0){
+                    len = 0;
+                    return -1;
+                }
+                bytes += len;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Scanned %d bytes of edif and xdc for nets marked for debug in %.1f s.", bytes, ns / 1e9);
+        }
+    }
+
+    /**
+     * Persistent cache of pre-implemented ila cores (ila dcp files) shared between designs
+     * and .iii directories. Cores are stored under a hash of everything that affects the
+     * generated core, so a core is reused for any design with the same part and ila settings.
+     */
+    static class IlaCoreCache {
+        File cache_dir;
+        int hits = 0;
+        int misses = 0;
+        long saved_ns = 0;
+        long generate_ns = 0;
+
+        IlaCoreCache(File cache_dir){
+            this.cache_dir = cache_dir;
+        }
+
+        /**
+         * @return Parameters that identify an ila core, in a fixed order.
+         */
+        static Map<String, String> params(String part, int probe_count, int probe_depth, String clk_net){
+            Map<String, String> m = new TreeMap<>();
+            m.put("part", part);
+            m.put("probe_count", Integer.toString(probe_count));
+            m.put("probe_depth", Integer.toString(probe_depth));
+            m.put("clk_net", clk_net);
+            return m;
+        }
+
+        /**
+         * @return Hex SHA-256 of the parameters.
+         */
+        static String key(Map<String, String> params){
+            StringBuilder sb = new StringBuilder();
+            for(Entry<String, String> e : params.entrySet())
+                sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for(byte b : digest)
+                    hex.append(String.format("%02x", b));
+                return hex.toString();
+            } catch(NoSuchAlgorithmException e){
+                throw new RuntimeException(e);
+            }
+        }
+
+        private File dcpFile(String key){
+            return new File(cache_dir, "ila_" + key + ".dcp");
+        }
+        private File metadataFile(String key){
+            return new File(cache_dir, "ila_" + key + ".txt");
+        }
+
+        /**
+         * Find a cached core. Counts a hit and the generation time it saves if found, else a miss.
+         * @return The core dcp or null.
+         */
+        File lookup(String key){
+            File dcp = dcpFile(key);
+            if(!dcp.exists()){
+                misses++;
+                return null;
+            }
+            hits++;
+            File meta = metadataFile(key);
+            if(meta.exists()){
+                try {
+                    saved_ns += Long.parseLong(readMapFile(meta.getAbsolutePath(), "=", false).get("generate_ns"));
+                } catch(NumberFormatException | NullPointerException e){}
+            }
+            return dcp;
+        }
+
+        /**
+         * @return A file for a new core to be generated into before it is stored.
+         */
+        File tempFile(String key){
+            return new File(cache_dir, "ila_" + key + "_" + System.nanoTime() + ".tmp.dcp");
+        }
+
+        /**
+         * Move a newly generated core into the cache.
+         * @param tmp Core written to a file from tempFile().
+         * @param ns Time it took to generate the core.
+         * @return The cached core or null if tmp doesn't exist.
+         */
+        File store(String key, File tmp, Map<String, String> params, long ns){
+            generate_ns += ns;
+            if(!tmp.exists())
+                return null;
+            List<String> lines = new ArrayList<>();
+            lines.add("# Pre-implemented ila core 'ila_" + key + ".dcp'");
+            for(Entry<String, String> e : params.entrySet())
+                lines.add(e.getKey() + " = " + e.getValue());
+            lines.add("generate_ns = " + ns);
+            FileTools.writeLinesToTextFile(lines, metadataFile(key).getAbsolutePath());
+            try {
+                Files.move(tmp.toPath(), dcpFile(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException ioe){
+                // another run stored the same core first
+                FileTools.deleteFile(tmp.getAbsolutePath());
+            }
+            return dcpFile(key);
+        }
+
+        String summary(){
+            return String.format("Ila core cache '%s': %d hit(s), %d miss(es). Saved about %.1f s of core generation"
+                    + " (spent %.1f s generating).", cache_dir.getAbsolutePath(), hits, misses, saved_ns / 1e9, generate_ns / 1e9);
+        }
+    }
+
+    /**
+     * Manifest of an intermediate design in .iii. Records the parameters it was built with and,
+     * for each checkpoint involved, a content hash along with the size and file key (inode) of
+     * the file that was hashed. A file is only hashed again if its size or file key changed, so
+     * checking an unchanged multi-GB checkpoint costs one stat.
+     * Stored as '<key> = <value>' lines so it can be read with readMapFile().
+     */
+    static class IntermediateManifest {
+        private static final int HASH_BUFFER = 1 << 20;
+        Map<String, String> entries = new TreeMap<>();
+        long hashed_bytes = 0;
+
+        static IntermediateManifest read(File f){
+            IntermediateManifest m = new IntermediateManifest();
+            m.entries.putAll(readMapFile(f.getAbsolutePath(), "=", false));
+            return m;
+        }
+
+        void write(File f){
+            List<String> lines = new ArrayList<>();
+            lines.add("# This is a metadata file. It records how the intermediate design was made.");
+            lines.add("# Mappings: <key> -> <value>");
+            for(Entry<String, String> e : entries.entrySet())
+                lines.add(e.getKey() + " = " + e.getValue());
+            FileTools.writeLinesToTextFile(lines, f.getAbsolutePath());
+        }
+
+        String get(String key){
+            return entries.get(key);
+        }
+        /**
+         * @return The value of key as an integer, or default_value if it's missing or not an integer.
+         */
+        int getInt(String key, int default_value){
+            try {
+                String v = get(key);
+                return (v == null) ? default_value : Integer.parseInt(v);
+            } catch(NumberFormatException nfe){
+                return default_value;
+            }
+        }
+        void put(String key, Object value){
+            entries.put(key, String.valueOf(value));
+        }
+
+        /**
+         * Hash f and record the hash, size and file key of f under role.
+         */
+        void recordFile(String role, File f) throws IOException {
+            put(role + ".sha256", sha256(f));
+            put(role + ".size", f.length());
+            put(role + ".file_key", fileKey(f));
+        }
+
+        /**
+         * @return True if f has the same content as the file recorded under role. The recorded size
+         * and file key are updated if f had to be hashed again.
+         */
+        boolean matchesFile(String role, File f) throws IOException {
+            String recorded = get(role + ".sha256");
+            if(recorded == null || !f.exists())
+                return false;
+            if(!recorded.equals(hashFile(role, f)))
+                return false;
+            put(role + ".size", f.length());
+            put(role + ".file_key", fileKey(f));
+            return true;
+        }
+
+        /**
+         * Hash of f. Reuses the recorded hash if size and file key haven't changed.
+         */
+        private String hashFile(String role, File f) throws IOException {
+            String recorded = get(role + ".sha256");
+            if(recorded != null && Long.toString(f.length()).equals(get(role + ".size"))
+                    && fileKey(f).equals(get(role + ".file_key")))
+                return recorded;
+            return sha256(f);
+        }
+
+        /**
+         * Streams f through SHA-256.
+         * @return Hex digest.
+         */
+        String sha256(File f) throws IOException {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException e){
+                throw new IOException(e);
+            }
+            byte[] buffer = new byte[HASH_BUFFER];
+            try(InputStream in = new FileInputStream(f)){
+                int len;
+                while((len = in.read(buffer)) > 0){
+                    md.update(buffer, 0, len);
+                    hashed_bytes += len;
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for(byte b : md.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+
+        /**
+         * @return Identity of the file on disk (device and inode where available), else its modification time.
+         */
+        static String fileKey(File f) throws IOException {
+            Object key = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+            String s = (key == null) ? "mtime:" + f.lastModified() : key.toString();
+            return s.replaceAll("[=\\s]", "");
+        }
+    }
+
+    /**
+     * Minimal JSON reader for the files ILADebug writes itself (run history).
+     * Objects become Maps, arrays Lists, numbers Longs or Doubles.
+     */
+    static class JsonReader {
+        private final String s;
+        private int i = 0;
+
+        private JsonReader(String s){
+            this.s = s;
+        }
+
+        static Object parse(String s){
+            JsonReader r = new JsonReader(s);
+            Object o = r.value();
+            r.space();
+            if(r.i != s.length())
+                throw r.error("trailing characters");
+            return o;
+        }
+
+        private Object value(){
+            space();
+            if(i >= s.length())
+                throw error("unexpected end");
+            char c = s.charAt(i);
+            if(c == '{'){
+                Map<String, Object> m = new LinkedHashMap<>();
+                i++;
+                space();
+                if(peek('}'))
+                    return m;
+                do {
+                    space();
+                    String k = string();
+                    space();
+                    expect(':');
+                    m.put(k, value());
+                    space();
+                } while(peek(','));
+                expect('}');
+                return m;
+            }
+            if(c == '['){
+                List<Object> l = new ArrayList<>();
+                i++;
+                space();
+                if(peek(']'))
+                    return l;
+                do {
+                    l.add(value());
+                    space();
+                } while(peek(','));
+                expect(']');
+                return l;
+            }
+            if(c == '"')
+                return string();
+            if(s.startsWith("true", i)){ i += 4; return Boolean.TRUE; }
+            if(s.startsWith("false", i)){ i += 5; return Boolean.FALSE; }
+            if(s.startsWith("null", i)){ i += 4; return null; }
+            int start = i;
+            while(i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0)
+                i++;
+            String num = s.substring(start, i);
+            try {
+                if(num.contains(".") || num.contains("e") || num.contains("E"))
+                    return Double.parseDouble(num);
+                return Long.parseLong(num);
+            } catch(NumberFormatException nfe){
+                throw error("bad value");
+            }
+        }
+
+        private String string(){
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while(i < s.length() && s.charAt(i) != '"'){
+                char c = s.charAt(i++);
+                if(c == '\\' && i < s.length()){
+                    char e = s.charAt(i++);
+                    switch(e){
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                            i += 4;
+                            break;
+                        default: sb.append(e);
+                    }
+                }
+                else
+                    sb.append(c);
+            }
+            expect('"');
+            return sb.toString();
+        }
+
+        private void space(){
+            while(i < s.length() && Character.isWhitespace(s.charAt(i)))
+                i++;
+        }
+        private boolean peek(char c){
+            if(i < s.length() && s.charAt(i) == c){
+                i++;
+                return true;
+            }
+            return false;
+        }
+        private void expect(char c){
+            if(!peek(c))
+                throw error("expected '" + c + "'");
+        }
+        private IllegalArgumentException error(String msg){
+            return new IllegalArgumentException(msg + " at character " + i);
+        }
+    }
+
+    /**
+     * Append-only history of runs in .iii (run_history.jsonl, one JSON object per run) and the
+     * regression report made from it. A run is compared with the earlier runs on the same input
+     * (same input checkpoint hash, probe count and probe depth). A phase is flagged if its time
+     * in the latest run is more than threshold percent above the median of the earlier runs.
+     */
+    static class RunHistory {
+        static final String FILE_NAME = "run_history.jsonl";
+        static final String[] REPORT_SWITCH = {"-R", "--regression_report"};
+        static final String USAGE = "USAGE: [-R|--regression_report <iii_dir> [<threshold_percent>]]\n";
+        // differences smaller than this are never flagged, so short phases don't raise noise
+        static final double MIN_SECONDS = 1.0;
+        static final String[] METRICS = {"wall_ns", "cpu_ns", "vivado_ns"};
+
+        /**
+         * @return True if args ask for a regression report.
+         */
+        static boolean isReport(String[] args){
+            return args.length > 0 && Arrays.asList(REPORT_SWITCH).contains(args[0]);
+        }
+
+        static synchronized void append(File iii_dir, String record){
+            File f = new File(iii_dir, FILE_NAME);
+            try {
+                Files.write(f.toPath(), (record + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch(IOException ioe){
+                MessageGenerator.briefMessage("Couldn't append to run history '" + f.getAbsolutePath()
+                        + "' (" + ioe.getMessage() + ").");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        static List<Map<String, Object>> read(File f) throws IOException {
+            List<Map<String, Object>> runs = new ArrayList<>();
+            int line_no = 0;
+            for(String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)){
+                line_no++;
+                if(line.trim().isEmpty())
+                    continue;
+                try {
+                    runs.add((Map<String, Object>) JsonReader.parse(line));
+                } catch(IllegalArgumentException | ClassCastException e){
+                    MessageGenerator.briefMessage("Skipping line " + line_no + " of '" + f.getName() + "' (" + e.getMessage() + ").");
+                }
+            }
+            return runs;
+        }
+
+        /**
+         * @return Key of the input a run was made on. Runs are only compared with runs of the same key.
+         */
+        static String inputKey(Map<String, Object> run){
+            return run.get("design") + " " + run.get("input_sha256") + " " + run.get("probe_count")
+                    + " " + run.get("probe_depth");
+        }
+
+        static double number(Object o){
+            return (o instanceof Number) ? ((Number) o).doubleValue() : Double.NaN;
+        }
+
+        static double median(List<Double> l){
+            List<Double> sorted = new ArrayList<>(l);
+            sorted.sort(null);
+            int n = sorted.size();
+            return (n % 2 == 1) ? sorted.get(n / 2) : (sorted.get(n / 2 - 1) + sorted.get(n / 2)) / 2;
+        }
+
+        /**
+         * @return Values of metric for phase in the earlier runs of design whose final stage used the given route mode.
+         */
+        @SuppressWarnings("unchecked")
+        static List<Double> phaseHistory(File iii_dir, String design, String route, String phase, String metric){
+            List<Double> values = new ArrayList<>();
+            for(Map<String, Object> run : runs(iii_dir, design)){
+                if(!route.equals(run.get("route")))
+                    continue;
+                Map<String, Object> run_phases = (Map<String, Object>) run.get("phases");
+                Object p = (run_phases == null) ? null : run_phases.get(phase);
+                if(p != null && !Double.isNaN(number(((Map<String, Object>) p).get(metric))))
+                    values.add(number(((Map<String, Object>) p).get(metric)) / 1e9);
+            }
+            return values;
+        }
+
+        /**
+         * @return The runs of design in the history of iii_dir, oldest first. Empty if there is no history.
+         */
+        static List<Map<String, Object>> runs(File iii_dir, String design){
+            List<Map<String, Object>> runs = new ArrayList<>();
+            File f = new File(iii_dir, FILE_NAME);
+            if(!f.exists())
+                return runs;
+            try {
+                for(Map<String, Object> run : read(f))
+                    if(design.equals(run.get("design")))
+                        runs.add(run);
+            } catch(IOException ioe){
+                MessageGenerator.briefMessage("Couldn't read run history '" + f.getAbsolutePath() + "' (" + ioe.getMessage() + ").");
+            }
+            return runs;
+        }
+
+        /**
+         * Prints the report for the latest run of every input in the history of iii_dir.
+         * @return Number of regressions found.
+         */
+        @SuppressWarnings("unchecked")
+        static int report(File iii_dir, double threshold){
+            File f = new File(iii_dir, FILE_NAME);
+            List<Map<String, Object>> runs;
+            try {
+                runs = read(f);
+            } catch(IOException ioe){
+                MessageGenerator.briefErrorAndExit("Couldn't read run history '" + f.getAbsolutePath() + "' (" + ioe.getMessage() + ").\n");
+                return 0;
+            }
+            Map<String, List<Map<String, Object>>> by_input = new LinkedHashMap<>();
+            for(Map<String, Object> run : runs)
+                by_input.computeIfAbsent(inputKey(run), k -> new ArrayList<>()).add(run);
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Run history '%s': %d runs on %d inputs. Threshold %.0f%%.%n",
+                    f.getAbsolutePath(), runs.size(), by_input.size(), threshold));
+            int regressions = 0;
+            for(List<Map<String, Object>> input_runs : by_input.values()){
+                Map<String, Object> latest = input_runs.get(input_runs.size() - 1);
+                List<Map<String, Object>> earlier = input_runs.subList(0, input_runs.size() - 1);
+                sb.append(String.format("%n%s (sha256 %s, %s probes, depth %s): %d earlier run(s)%n", latest.get("design"),
+                        latest.get("input_sha256"), latest.get("probe_count"), latest.get("probe_depth"), earlier.size()));
+                if(earlier.isEmpty())
+                    continue;
+                sb.append(String.format("  %-18s  %-9s  %12s  %12s  %8s%n", "phase", "metric", "median (s)", "latest (s)", "change"));
+
+                Map<String, Object> phases = (Map<String, Object>) latest.get("phases");
+                if(phases == null)
+                    continue;
+                for(Entry<String, Object> p : phases.entrySet()){
+                    for(String metric : METRICS){
+                        double now = number(((Map<String, Object>) p.getValue()).get(metric)) / 1e9;
+                        List<Double> before = new ArrayList<>();
+                        for(Map<String, Object> run : earlier){
+                            Map<String, Object> run_phases = (Map<String, Object>) run.get("phases");
+                            Object phase = (run_phases == null) ? null : run_phases.get(p.getKey());
+                            if(phase != null && !Double.isNaN(number(((Map<String, Object>) phase).get(metric))))
+                                before.add(number(((Map<String, Object>) phase).get(metric)) / 1e9);
+                        }
+                        if(before.isEmpty() || Double.isNaN(now))
+                            continue;
+                        double base = median(before);
+                        if(base == 0 && now == 0)
+                            continue;
+                        boolean regressed = now > base * (1 + threshold / 100) && now - base >= MIN_SECONDS;
+                        if(!regressed && metric.equals("cpu_ns"))
+                            continue;   // only list cpu time when it regressed
+                        if(regressed)
+                            regressions++;
+                        sb.append(String.format("  %-18s  %-9s  %12.1f  %12.1f  %+7.0f%%%s%n", p.getKey(),
+                                metric.replace("_ns", ""), base, now, base > 0 ? (now - base) / base * 100 : 0.0,
+                                regressed ? "  REGRESSED" : ""));
+                    }
+                }
+                List<Double> peaks = new ArrayList<>();
+                for(Map<String, Object> run : earlier)
+                    if(number(run.get("vivado_peak_mb")) > 0)
+                        peaks.add(number(run.get("vivado_peak_mb")));
+                double peak = number(latest.get("vivado_peak_mb"));
+                if(!peaks.isEmpty() && peak > 0){
+                    double base = median(peaks);
+                    boolean regressed = peak > base * (1 + threshold / 100);
+                    if(regressed)
+                        regressions++;
+                    sb.append(String.format("  %-18s  %-9s  %12.0f  %12.0f  %+7.0f%%%s  (MB)%n", "vivado", "peak_mem",
+                            base, peak, (peak - base) / base * 100, regressed ? "  REGRESSED" : ""));
+                }
+            }
+            sb.append(String.format("%n%d regression(s).%n", regressions));
+            MessageGenerator.briefMessage(sb.toString());
+            return regressions;
+        }
+
+        /**
+         * Runs the report for '-R <iii_dir> [<threshold_percent>]'.
+         * @return Number of regressions found.
+         */
+        static int run(String[] args){
+            if(args.length < 2 || args.length > 3)
+                MessageGenerator.briefErrorAndExit(USAGE);
+            double threshold = 20;
+            if(args.length == 3){
+                try {
+                    threshold = Double.parseDouble(args[2]);
+                } catch(NumberFormatException nfe){
+                    MessageGenerator.briefErrorAndExit("Couldn't parse '" + args[2] + "' as a threshold.\n" + USAGE);
+                }
+            }
+            return report(new File(args[1]), threshold);
+        }
+    }
+
+    /**
+     * Thrown instead of exiting when a batch job hits an error.
+     */
+    static class JobFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        JobFailedException(String msg){
+            super(msg);
+        }
+    }
+
+    /**
+     * Runs many ILADebug jobs in one JVM. Each line of the job file holds the command line arguments
+     * of one job. Jobs run on a fixed number of threads, each job in its own ILADebug instance. Jobs
+     * that use the same .iii directory never run at the same time. Devices are loaded once per part
+     * before any job starts and are shared by all jobs on that part.
+     */
+    static class BatchRunner {
+        static final String[] BATCH_SWITCH = {"-b", "--batch"};
+        static final String[] JOBS_SWITCH = {"-j", "--jobs"};
+
+        static class Job {
+            int id;
+            String[] args;
+            ILADebug ila_dbg = new ILADebug();
+            String iii_path = null;
+            String part = null;
+            String status = "not run";
+            long wall_ns = 0;
+        }
+
+        List<Job> jobs = new ArrayList<>();
+        int threads = 1;
+        private final Map<String, Object> iii_locks = new HashMap<>();
+
+        /**
+         * @return True if args ask for batch mode.
+         */
+        static boolean isBatch(String[] args){
+            for(String a : args)
+                for(String sw : BATCH_SWITCH)
+                    if(a.equals(sw))
+                        return true;
+            return false;
+        }
+
+        /**
+         * Parse '-b <job_file> [-j <threads>]' and read the job file.
+         */
+        BatchRunner(String[] args){
+            String job_file = null;
+            for(int i = 0 ; i < args.length ; i++){
+                if(Arrays.asList(BATCH_SWITCH).contains(args[i]) && i + 1 < args.length)
+                    job_file = args[++i];
+                else if(Arrays.asList(JOBS_SWITCH).contains(args[i]) && i + 1 < args.length){
+                    try {
+                        threads = Math.max(1, Integer.parseInt(args[++i]));
+                    } catch(NumberFormatException nfe){
+                        MessageGenerator.briefErrorAndExit("Couldn't parse '" + args[i] + "' as a number of jobs.\n");
+                    }
+                }
+                else
+                    MessageGenerator.briefErrorAndExit("Unrecognized batch argument '" + args[i] + "'.\n"
+                            + "USAGE: [-b|--batch <job_file>] [-j|--jobs <threads>]\n");
+            }
+            if(job_file == null || !new File(job_file).exists())
+                MessageGenerator.briefErrorAndExit("Could not access/find job file '" + job_file + "'.\n");
+
+            for(String line : FileTools.getLinesFromTextFile(job_file)){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                Job j = new Job();
+                j.id = jobs.size() + 1;
+                j.args = line.split("\\s+");
+                jobs.add(j);
+            }
+        }
+
+        /**
+         * Parses each job's arguments, finds its .iii directory and part, and loads each part's device once.
+         */
+        private void prepare(){
+            Map<String, Integer> part_jobs = new TreeMap<>();
+            for(Job j : jobs){
+                try {
+                    j.ila_dbg.batch_job = true;
+                    j.ila_dbg.mapArgs(j.args);
+                    ArrayList<String> files = j.ila_dbg.arg_map.get("iii_dir");
+                    // the same directory setFiles() will use, so -d foo and -d foo/.iii share a lock
+                    File iii = iiiDir(new File(System.getProperty("user.dir")), files == null ? null : files.get(0));
+                    j.iii_path = iii.getCanonicalPath();
+                    j.part = readPartName(new File(j.ila_dbg.arg_map.get("input_dcp").get(0)));
+                    if(j.part != null)
+                        part_jobs.merge(j.part, 1, Integer::sum);
+                } catch(JobFailedException | IOException e){
+                    j.status = "failed: " + e.getMessage().trim();
+                }
+            }
+            for(Entry<String, Integer> e : part_jobs.entrySet()){
+                long start = System.nanoTime();
+                Device.getDevice(e.getKey());
+                MessageGenerator.briefMessage(String.format("Loaded device '%s' in %.1f s, shared by %d job(s).",
+                        e.getKey(), (System.nanoTime() - start) / 1e9, e.getValue()));
+            }
+        }
+
+        /**
+         * @return Part name from dcp.xml in the checkpoint, or null if it can't be read.
+         */
+        static String readPartName(File dcp){
+            try(ZipFile zf = new ZipFile(dcp)){
+                ZipEntry ze = zf.getEntry("dcp.xml");
+                if(ze == null)
+                    return null;
+                try(BufferedReader br = new BufferedReader(new InputStreamReader(zf.getInputStream(ze)))){
+                    String line;
+                    while((line = br.readLine()) != null){
+                        int i = line.indexOf("<Part Name=\"");
+                        if(i >= 0)
+                            return line.substring(i + 12, line.indexOf('"', i + 12));
+                    }
+                }
+            } catch(IOException | IndexOutOfBoundsException e){}
+            return null;
+        }
+
+        private Object iiiLock(String iii_path){
+            synchronized(iii_locks){
+                Object lock = iii_locks.get(iii_path);
+                if(lock == null){
+                    lock = new Object();
+                    iii_locks.put(iii_path, lock);
+                }
+                return lock;
+            }
+        }
+
+        private void runJob(Job j){
+            synchronized(iiiLock(j.iii_path)){
+                long start = System.nanoTime();
+                try {
+                    j.ila_dbg.run();
+                    j.status = "ok";
+                } catch(JobFailedException e){
+                    j.status = "failed: " + e.getMessage().trim();
+                } catch(RuntimeException e){
+                    e.printStackTrace();
+                    j.status = "failed: " + e;
+                } finally {
+                    j.wall_ns = System.nanoTime() - start;
+                    if(j.ila_dbg.vivado_session != null)
+                        j.ila_dbg.vivado_session.close();
+                }
+            }
+        }
+
+        /**
+         * Run all jobs and print a summary.
+         * @return Number of jobs that failed.
+         */
+        int run(){
+            long start = System.nanoTime();
+            prepare();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for(Job j : jobs)
+                if(j.iii_path != null)
+                    futures.add(pool.submit(() -> runJob(j)));
+            for(Future<?> f : futures){
+                try {
+                    f.get();
+                } catch(InterruptedException | ExecutionException e){
+                    e.printStackTrace();
+                }
+            }
+            pool.shutdown();
+
+            int failed = 0;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%nBatch summary: %d job(s) on %d thread(s) in %.1f s%n", jobs.size(), threads,
+                    (System.nanoTime() - start) / 1e9));
+            sb.append(String.format("%4s  %10s  %-24s  %s%n", "job", "time (s)", "part", "status / output"));
+            for(Job j : jobs){
+                if(!j.status.equals("ok"))
+                    failed++;
+                ArrayList<String> out = j.ila_dbg.arg_map.get("output_dcp");
+                sb.append(String.format("%4d  %10.1f  %-24s  %s%n", j.id, j.wall_ns / 1e9, j.part,
+                        j.status.equals("ok") && out != null ? "ok " + out.get(0) : j.status));
+            }
+            MessageGenerator.briefMessage(sb.toString());
+            return failed;
+        }
+    }
+
+    /**
+     * Probe mappings of an ila: net connected to each probe wire, by probe index. Net names are interned,
+     * so the many probes padded with the same net share one string. Probe pin names are made once.
+     * The ila is u_ila_0 unless the design has an ila per clock domain (see IlaShard).
+     */
+    static class ProbeMap {
+        static final String ILA_PARENT = "top";
+        static final String ILA_INST = ILA_PARENT + EDIFTools.EDIF_HIER_SEP + "u_ila_0";
+        static final String PIN_PREFIX = "probe0[";
+        static final String PROBE_PREFIX = ILA_INST + EDIFTools.EDIF_HIER_SEP + PIN_PREFIX;
+        static final String PROBE_SUFFIX = "]";
+        private static final String[] PIN_NAMES = new String[MAX_PROBE_COUNT];
+        private static final String[] PROBE_NAMES = new String[MAX_PROBE_COUNT];
+        static {
+            for(int i = 0 ; i < MAX_PROBE_COUNT ; i++){
+                PIN_NAMES[i] = PIN_PREFIX + i + PROBE_SUFFIX;
+                PROBE_NAMES[i] = PROBE_PREFIX + i + PROBE_SUFFIX;
+            }
+        }
+
+        final String ila_inst;
+        private String[] nets;
+        private final BitSet assigned = new BitSet();
+        private final Map<String, String> interned = new HashMap<>();
+
+        ProbeMap(){
+            this(ILA_INST);
+        }
+        ProbeMap(String ila_inst){
+            this.ila_inst = ila_inst;
+            nets = new String[64];
+        }
+
+        /**
+         * @return Hierarchical name of ila k (top/u_ila_k).
+         */
+        static String ilaInst(int k){
+            return ILA_PARENT + EDIFTools.EDIF_HIER_SEP + "u_ila_" + k;
+        }
+
+        /**
+         * @return Name of probe wire i of this map's ila.
+         */
+        String probe(int i){
+            return ila_inst.equals(ILA_INST) ? probeName(i) : ila_inst + EDIFTools.EDIF_HIER_SEP + pinName(i);
+        }
+
+        /**
+         * @return Name of probe wire i (top/u_ila_0/probe0[i]).
+         */
+        static String probeName(int i){
+            return (i < MAX_PROBE_COUNT) ? PROBE_NAMES[i] : PROBE_PREFIX + i + PROBE_SUFFIX;
+        }
+
+        /**
+         * @return Name of the pin of probe wire i on the ila (probe0[i]).
+         */
+        static String pinName(int i){
+            return (i < MAX_PROBE_COUNT) ? PIN_NAMES[i] : PIN_PREFIX + i + PROBE_SUFFIX;
+        }
+
+        /**
+         * @return Index of the probe wire named probe_name, or -1 if it isn't a probe wire of the ila.
+         */
+        static int probeIndex(String probe_name){
+            if(!probe_name.startsWith(PROBE_PREFIX) || !probe_name.endsWith(PROBE_SUFFIX))
+                return -1;
+            int end = probe_name.length() - PROBE_SUFFIX.length();
+            if(end == PROBE_PREFIX.length() || end - PROBE_PREFIX.length() > 9)
+                return -1;
+            int i = 0;
+            for(int c = PROBE_PREFIX.length() ; c < end ; c++){
+                char ch = probe_name.charAt(c);
+                if(ch < '0' || ch > '9')
+                    return -1;
+                i = i * 10 + (ch - '0');
+            }
+            return i;
+        }
+
+        /**
+         * Connects probe wire i to net.
+         * @return The net it was connected to before, or null.
+         */
+        String put(int i, String net){
+            if(i >= nets.length)
+                nets = Arrays.copyOf(nets, Math.max(i + 1, nets.length * 2));
+            if(net != null){
+                String in = interned.putIfAbsent(net, net);
+                if(in != null)
+                    net = in;
+            }
+            String prev = nets[i];
+            nets[i] = net;
+            assigned.set(i);
+            return prev;
+        }
+
+        String get(int i){
+            return (i < nets.length) ? nets[i] : null;
+        }
+
+        boolean isAssigned(int i){
+            return assigned.get(i);
+        }
+
+        /**
+         * @return Index of the first probe wire at or after i that isn't connected.
+         */
+        int nextFree(int i){
+            return assigned.nextClearBit(i);
+        }
+
+        /**
+         * @return Number of connected probe wires.
+         */
+        int size(){
+            return assigned.cardinality();
+        }
+
+        /**
+         * @return Index of the last connected probe wire + 1.
+         */
+        int length(){
+            return assigned.length();
+        }
+
+        /**
+         * Connects probe wires that aren't connected below count to net.
+         */
+        void pad(int count, String net){
+            for(int i = nextFree(0) ; i < count ; i = nextFree(i + 1))
+                put(i, net);
+        }
+
+        /**
+         * @return The connected nets, in probe order.
+         */
+        List<String> nets(){
+            List<String> l = new ArrayList<>(size());
+            for(int i = assigned.nextSetBit(0) ; i >= 0 ; i = assigned.nextSetBit(i + 1))
+                l.add(nets[i]);
+            return l;
+        }
+    }
+
+    /**
+     * One of the ilas of a design debugged with an ila per clock domain (see --ila_per_clock). Probed nets are
+     * grouped by the clock of the flop, block ram or dsp that drives them. Nets driven by logic that isn't
+     * clocked (luts, ports) go to the group of clk_net, which is always the first ila, u_ila_0. A group with
+     * more than MAX_PROBE_COUNT nets is split over several ilas on the same clock.
+     */
+    static class IlaShard {
+        // logical pins that clock the cells that can drive a probed net
+        static final String[] CLOCK_PINS = {"C", "CLK", "CLKARDCLK", "CLKBWRCLK", "WCLK"};
+
+        final ProbeMap probe_map;
+        final String clk_net;       // physical (parent) net of the clock
+        final String ila_clk;       // net the ila's clk is connected to, the clk_net given by the user for its domain
+
+        IlaShard(int k, String clk_net, String ila_clk){
+            probe_map = new ProbeMap(ProbeMap.ilaInst(k));
+            this.clk_net = clk_net;
+            this.ila_clk = ila_clk;
+        }
+
+        /**
+         * @return The ilas for nets, in the order of their instances. The first is always on clk_net, even if
+         * none of nets is in its domain.
+         */
+        static List<IlaShard> plan(Design d, HierNameIndex index, List<String> nets, String clk_net){
+            String default_clk = index.getParentNetName(clk_net);
+            if(default_clk == null)
+                default_clk = clk_net;
+            Map<String, List<String>> domains = new TreeMap<>();
+            for(String net : nets){
+                if(net == null || isTieOff(net))
+                    continue;
+                String clk = driverClock(d, index, net);
+                domains.computeIfAbsent(clk == null ? default_clk : clk, k -> new ArrayList<>()).add(net);
+            }
+            domains.putIfAbsent(default_clk, new ArrayList<>());
+            List<String> clocks = new ArrayList<>(domains.keySet());
+            clocks.remove(default_clk);
+            clocks.add(0, default_clk);
+
+            List<IlaShard> shards = new ArrayList<>();
+            for(String clk : clocks){
+                List<String> l = domains.get(clk);
+                for(int from = 0 ; from == 0 || from < l.size() ; from += MAX_PROBE_COUNT){
+                    IlaShard s = new IlaShard(shards.size(), clk, clk.equals(default_clk) ? clk_net : clk);
+                    for(int i = from ; i < l.size() && i < from + MAX_PROBE_COUNT ; i++)
+                        s.probe_map.put(i - from, l.get(i));
+                    shards.add(s);
+                }
+            }
+            return shards;
+        }
+
+        /**
+         * @return The clock of the ila of each shard, comma separated. Recorded in the manifest as ila_clocks.
+         */
+        static String clocks(List<IlaShard> shards){
+            StringBuilder sb = new StringBuilder();
+            for(IlaShard s : shards)
+                sb.append(sb.length() == 0 ? "" : ",").append(s.clk_net);
+            return sb.toString();
+        }
+
+        /**
+         * Finds the cell driving net from the site pin that sources its physical net. In a slice only the flops
+         * are clocked (AQ from AFF, AQ2 from AFF2, AMUX from A5FF); outside a slice the first cell with a clock
+         * pin is taken.
+         * @return Physical net clocking the driver of net, or null if it isn't driven by a clocked cell.
+         */
+        static String driverClock(Design d, HierNameIndex index, String net){
+            Net phys = index.getParentNet(net);
+            SitePinInst src = (phys == null) ? null : phys.getSource();
+            if(src == null)
+                return null;
+            SiteInst si = src.getSiteInst();
+            String pin = src.getName();
+            SiteTypeEnum type = si.getSite().getSiteTypeEnum();
+            List<Cell> cells = new ArrayList<>();
+            if(type == SiteTypeEnum.SLICEL || type == SiteTypeEnum.SLICEM){
+                String bel = null;
+                if(pin.length() >= 2 && pin.charAt(1) == 'Q')
+                    bel = pin.charAt(0) + (pin.endsWith("2") ? "FF2" : "FF");
+                else if(pin.endsWith("MUX"))
+                    bel = pin.charAt(0) + "5FF";
+                Cell c = (bel == null) ? null : si.getCell(bel);
+                if(c != null)
+                    cells.add(c);
+            }
+            else
+                cells.addAll(si.getCells());
+
+            for(Cell c : cells){
+                EDIFCellInst inst = c.getEDIFCellInst();
+                if(inst == null)
+                    continue;
+                for(String clk_pin : CLOCK_PINS){
+                    EDIFPortInst pi = inst.getPortInst(clk_pin);
+                    if(pi == null || pi.getNet() == null)
+                        continue;
+                    int sep = c.getName().lastIndexOf(EDIFTools.EDIF_HIER_SEP);
+                    String hier_net = (sep < 0) ? pi.getNet().getName()
+                            : c.getName().substring(0, sep + 1) + pi.getNet().getName();
+                    String parent = index.getParentNetName(hier_net);
+                    return (parent == null) ? hier_net : parent;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString(){
+            return probe_map.ila_inst + ": " + probe_map.size() + " probes on clock " + clk_net;
+        }
+    }
+
+    /**
+     * Index from hierarchical names to the cell instances, logical nets and physical parent nets of one design.
+     * An instance is found from its closest already indexed ancestor, so names that share a path are only
+     * walked once. Results are kept for the life of the index. Probe connections add nets and ports but no
+     * cell instances, so they don't invalidate it. Not thread safe, use one index per design.
+     */
+    static class HierNameIndex {
+        final Design design;
+        final EDIFNetlist netlist;
+        private final Map<String, EDIFCellInst> insts = new HashMap<>();
+        private final Map<String, String> parent_nets = new HashMap<>();
+        private final Map<String, Net> pin_nets = new HashMap<>();
+        long lookups = 0;
+        long hits = 0;
+
+        HierNameIndex(Design design){
+            this.design = design;
+            netlist = design.getNetlist();
+            insts.put("", netlist.getTopCellInst());
+        }
+
+        /**
+         * Same as EDIFNetlist.getCellInstFromHierName().
+         */
+        EDIFCellInst getCellInst(String hier_name){
+            lookups++;
+            EDIFCellInst inst = insts.get(hier_name);
+            if(inst != null){
+                hits++;
+                return inst;
+            }
+            int sep = hier_name.lastIndexOf(EDIFTools.EDIF_HIER_SEP);
+            EDIFCellInst parent = getCellInst(sep < 0 ? "" : hier_name.substring(0, sep));
+            if(parent != null)
+                inst = parent.getCellType().getCellInst(hier_name.substring(sep + 1));
+            // instance names may contain the hierarchy separator, let the netlist sort those out
+            if(inst == null)
+                inst = netlist.getCellInstFromHierName(hier_name);
+            if(inst != null)
+                insts.put(hier_name, inst);
+            return inst;
+        }
+
+        /**
+         * Same as EDIFTools.getNet().
+         */
+        EDIFNet getNet(String hier_net_name){
+            int sep = hier_net_name.lastIndexOf(EDIFTools.EDIF_HIER_SEP);
+            EDIFCellInst parent = getCellInst(sep < 0 ? "" : hier_net_name.substring(0, sep));
+            EDIFNet net = (parent == null) ? null : parent.getCellType().getNet(hier_net_name.substring(sep + 1));
+            return (net != null) ? net : EDIFTools.getNet(netlist, hier_net_name);
+        }
+
+        /**
+         * Same as EDIFNetlist.getParentNetName().
+         */
+        String getParentNetName(String hier_net_name){
+            lookups++;
+            String parent_net = parent_nets.get(hier_net_name);
+            if(parent_net != null){
+                hits++;
+                return parent_net;
+            }
+            parent_net = netlist.getParentNetName(hier_net_name);
+            if(parent_net != null)
+                parent_nets.put(hier_net_name, parent_net);
+            return parent_net;
+        }
+
+        /**
+         * @return Physical net that is the parent of the logical net hier_net_name.
+         */
+        Net getParentNet(String hier_net_name){
+            return design.getNet(getParentNetName(hier_net_name));
+        }
+
+        /**
+         * Same as EDIFNetlist.getPhysicalNetFromPin().
+         */
+        Net getPhysicalNetFromPin(String parent_inst_name, EDIFPortInst port_inst){
+            String key = parent_inst_name + EDIFTools.EDIF_HIER_SEP + port_inst.getNet().getName();
+            lookups++;
+            Net net = pin_nets.get(key);
+            if(net != null){
+                hits++;
+                return net;
+            }
+            net = netlist.getPhysicalNetFromPin(parent_inst_name, port_inst, design);
+            if(net != null)
+                pin_nets.put(key, net);
+            return net;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Name index: %d lookups, %d answered from the index, %d instances indexed.",
+                    lookups, hits, insts.size());
+        }
+    }
+
+    /**
+     * Maps the probe pins of the ilas (top/u_ila_0/probe0[i]) to the flops that capture them. The ila is the same
+     * for every probe set, so the table is built once per intermediate design and kept in .iii next to it.
+     * Each entry is the sink flop, its logical pin, the bel pin that logical pin maps to and the site pin used
+     * to reach the bel from outside the site. Probe pins that don't have exactly one sink are kept with their
+     * number of sinks so they are reported without searching again.
+     */
+    static class IlaSinkTable {
+        static class Sink {
+            String cell;
+            String port;
+            String bel_pin;
+            String site_pin;
+            int count = 1;
+        }
+
+        private final Map<String, Sink> sinks = new HashMap<>();
+        String intermediate_hash = null;
+        long build_ns = 0;
+
+        /**
+         * Finds the sinks of probe pins 0 to width-1 of each of the ilas in d.
+         * @param ila_insts Hierarchical names of the ilas.
+         */
+        static IlaSinkTable build(Design d, HierNameIndex index, List<String> ila_insts, int width){
+            long start = System.nanoTime();
+            IlaSinkTable t = new IlaSinkTable();
+            for(String ila : ila_insts){
+                ProbeMap names = new ProbeMap(ila);
+                for(int i = 0 ; i < width ; i++)
+                    t.resolve(d, index, names.probe(i));
+            }
+            t.build_ns = System.nanoTime() - start;
+            return t;
+        }
+
+        /**
+         * @return The sink of hier_pin_name, finding it in d if it isn't in the table.
+         */
+        synchronized Sink get(Design d, HierNameIndex index, String hier_pin_name){
+            Sink s = sinks.get(hier_pin_name);
+            return (s != null) ? s : resolve(d, index, hier_pin_name);
+        }
+
+        private synchronized Sink resolve(Design d, HierNameIndex index, String hier_pin_name){
+            Sink s = new Sink();
+            String cell_inst_name = EDIFTools.getHierarchicalRootFromPinName(hier_pin_name);
+            String pin_name = hier_pin_name.substring(hier_pin_name.lastIndexOf(EDIFTools.EDIF_HIER_SEP) + 1);
+            String hier_inst_name = cell_inst_name.contains(EDIFTools.EDIF_HIER_SEP)
+                    ? cell_inst_name.substring(0, cell_inst_name.lastIndexOf(EDIFTools.EDIF_HIER_SEP)) : "";
+            EDIFCellInst inst = index.getCellInst(cell_inst_name);
+            EDIFPortInst port_inst = (inst == null) ? null : inst.getPortInst(pin_name);
+            if(port_inst == null){
+                s.count = 0;
+                sinks.put(hier_pin_name, s);
+                return s;
+            }
+            ArrayList<EDIFHierPortInst> found = EDIFTools.findSinks(new EDIFHierPortInst(hier_inst_name, port_inst));
+            s.count = found.size();
+            if(s.count == 1){
+                s.cell = found.get(0).getFullHierarchicalInstName();
+                s.port = found.get(0).getPortInst().getName();
+                Cell c = d.getCell(s.cell);
+                if(c != null && c.getBEL() != null){
+                    s.bel_pin = c.getPhysicalPinMapping(s.port);
+                    s.site_pin = c.getBELName().charAt(0) + "X";
+                }
+            }
+            sinks.put(hier_pin_name, s);
+            return s;
+        }
+
+        static IlaSinkTable read(File f){
+            IlaSinkTable t = new IlaSinkTable();
+            for(String line : FileTools.getLinesFromTextFile(f.getAbsolutePath())){
+                String[] parts = line.trim().split("\\s+");
+                if(line.trim().startsWith("#")){
+                    if(parts.length == 4 && parts[1].equals("intermediate_dcp.sha256"))
+                        t.intermediate_hash = parts[3];
+                    continue;
+                }
+                Sink s = new Sink();
+                if(parts.length == 5){
+                    s.cell = parts[1];
+                    s.port = parts[2];
+                    s.bel_pin = parts[3].equals("-") ? null : parts[3];
+                    s.site_pin = parts[4].equals("-") ? null : parts[4];
+                }
+                else if(parts.length == 2)
+                    s.count = Integer.parseInt(parts[1]);
+                else
+                    continue;
+                t.sinks.put(parts[0], s);
+            }
+            return t;
+        }
+
+        synchronized void write(File f){
+            List<String> lines = new ArrayList<>();
+            lines.add("# ILA probe sinks: <probe pin> <sink flop> <logical pin> <bel pin> <site pin>");
+            lines.add("# or: <probe pin> <number of sinks> if it doesn't have exactly one sink");
+            lines.add("# intermediate_dcp.sha256 = " + intermediate_hash);
+            for(String probe : StringTools.naturalSort(new ArrayList<>(sinks.keySet()))){
+                Sink s = sinks.get(probe);
+                if(s.count == 1)
+                    lines.add(probe + " " + s.cell + " " + s.port + " " + (s.bel_pin == null ? "-" : s.bel_pin)
+                            + " " + (s.site_pin == null ? "-" : s.site_pin));
+                else
+                    lines.add(probe + " " + s.count);
+            }
+            FileTools.writeLinesToTextFile(lines, f.getAbsolutePath());
+        }
+
+        synchronized int size(){
+            return sinks.size();
+        }
+    }
+
+    /**
+     * Times the phases of a run. Each phase records its wall time, the part of it spent waiting for
+     * vivado, cpu time and bytes allocated by the thread running it, and the files it read or wrote.
+     * Where the JVM has JFR (jdk.jfr, Java 11 and later) each phase is also emitted as an
+     * 'ILADebug.Phase' event. The event type is made at run time so ILADebug still compiles and
+     * runs on Java 8. The phases are written to a JSON report in .iii at the end of the run.
+     */
+    static class PhaseRecorder {
+        static class Phase {
+            String name;
+            long start_ms;
+            long wall_ns = 0;
+            long vivado_ns = 0;
+            long cpu_ns = 0;
+            long allocated_bytes = 0;
+            long bytes_read = 0;
+            long bytes_written = 0;
+            double vivado_peak_mb = 0;
+            List<String> files = new ArrayList<>();   // JSON objects
+
+            private long start_ns;
+            private long start_cpu;
+            private long start_alloc;
+            private Object jfr_event = null;
+
+            long jvmNanos(){
+                return wall_ns - vivado_ns;
+            }
+        }
+
+        private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        private static final Object JFR_FACTORY;
+        private static Method jfr_new_event, jfr_begin, jfr_end, jfr_commit, jfr_set;
+        static {
+            Object factory = null;
+            try {
+                Class<?> value_descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Class<?> annotation_element = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> event_factory = Class.forName("jdk.jfr.EventFactory");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                Constructor<?> annotation = annotation_element.getConstructor(Class.class, Object.class);
+                Constructor<?> field = value_descriptor.getConstructor(Class.class, String.class, List.class);
+                Object bytes = annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES");
+                Object nanos = annotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS");
+                List<Object> fields = Arrays.asList(
+                        field.newInstance(String.class, "phase", new ArrayList<>()),
+                        field.newInstance(long.class, "vivadoTime", Arrays.asList(nanos)),
+                        field.newInstance(long.class, "cpuTime", Arrays.asList(nanos)),
+                        field.newInstance(long.class, "allocated", Arrays.asList(bytes)),
+                        field.newInstance(long.class, "bytesRead", Arrays.asList(bytes)),
+                        field.newInstance(long.class, "bytesWritten", Arrays.asList(bytes)));
+                List<Object> annotations = Arrays.asList(
+                        annotation.newInstance(Class.forName("jdk.jfr.Name"), "ILADebug.Phase"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Label"), "ILADebug Phase"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"ILADebug"}));
+                factory = event_factory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                jfr_new_event = event_factory.getMethod("newEvent");
+                jfr_begin = event.getMethod("begin");
+                jfr_end = event.getMethod("end");
+                jfr_commit = event.getMethod("commit");
+                jfr_set = event.getMethod("set", int.class, Object.class);
+            } catch(ReflectiveOperationException | RuntimeException | LinkageError e){
+                factory = null; // no JFR in this JVM
+            }
+            JFR_FACTORY = factory;
+        }
+
+        private static final Pattern VIVADO_PEAK = Pattern.compile("Memory \\(MB\\): peak = ([0-9.]+)");
+        private static final Pattern VIVADO_VERSION = Pattern.compile("Vivado v(\\S+)");
+
+        List<Phase> phases = new ArrayList<>();
+        String vivado_version = null;
+        private Phase current = null;
+        final long start_ms = System.currentTimeMillis();
+        private final long start_ns = System.nanoTime();
+
+        /**
+         * Ends the current phase (if any) and starts a new one.
+         */
+        synchronized void begin(String name){
+            end();
+            Phase p = new Phase();
+            p.name = name;
+            p.start_ms = System.currentTimeMillis();
+            p.start_cpu = cpuNanos();
+            p.start_alloc = allocatedBytes();
+            if(JFR_FACTORY != null){
+                try {
+                    p.jfr_event = jfr_new_event.invoke(JFR_FACTORY);
+                    jfr_begin.invoke(p.jfr_event);
+                } catch(ReflectiveOperationException e){
+                    p.jfr_event = null;
+                }
+            }
+            p.start_ns = System.nanoTime();
+            current = p;
+        }
+
+        synchronized void end(){
+            Phase p = current;
+            if(p == null)
+                return;
+            current = null;
+            p.wall_ns = System.nanoTime() - p.start_ns;
+            p.cpu_ns = cpuNanos() - p.start_cpu;
+            p.allocated_bytes = allocatedBytes() - p.start_alloc;
+            phases.add(p);
+            if(p.jfr_event != null){
+                try {
+                    jfr_end.invoke(p.jfr_event);
+                    Object[] values = {p.name, p.vivado_ns, p.cpu_ns, p.allocated_bytes, p.bytes_read, p.bytes_written};
+                    for(int i = 0 ; i < values.length ; i++)
+                        jfr_set.invoke(p.jfr_event, i, values[i]);
+                    jfr_commit.invoke(p.jfr_event);
+                } catch(ReflectiveOperationException e){}
+                p.jfr_event = null;
+            }
+        }
+
+        /**
+         * Adds time spent waiting for a vivado process to the current phase.
+         */
+        synchronized void addVivado(long ns){
+            if(current != null)
+                current.vivado_ns += ns;
+        }
+
+        /**
+         * @return Time spent waiting for vivado so far in the current phase.
+         */
+        synchronized long currentVivadoNanos(){
+            return (current == null) ? 0 : current.vivado_ns;
+        }
+
+        /**
+         * Records the peak memory vivado reported in log (and its version) in the current phase.
+         */
+        synchronized void vivadoLog(File log){
+            if(current == null || log == null || !log.exists())
+                return;
+            try(BufferedReader br = Files.newBufferedReader(log.toPath(), StandardCharsets.ISO_8859_1)){
+                String line;
+                while((line = br.readLine()) != null){
+                    Matcher m = VIVADO_PEAK.matcher(line);
+                    if(m.find())
+                        current.vivado_peak_mb = Math.max(current.vivado_peak_mb, Double.parseDouble(m.group(1)));
+                    else if(vivado_version == null && (m = VIVADO_VERSION.matcher(line)).find())
+                        vivado_version = m.group(1);
+                }
+            } catch(IOException | NumberFormatException e){}
+        }
+
+        synchronized double vivadoPeakMB(){
+            double peak = 0;
+            for(Phase p : phases)
+                peak = Math.max(peak, p.vivado_peak_mb);
+            return peak;
+        }
+
+        synchronized void read(File f){
+            file(f, "read");
+        }
+        synchronized void wrote(File f){
+            file(f, "written");
+        }
+        private void file(File f, String op){
+            if(current == null || f == null || !f.exists())
+                return;
+            if(op.equals("read"))
+                current.bytes_read += f.length();
+            else
+                current.bytes_written += f.length();
+            current.files.add("{\"op\": \"" + op + "\", \"path\": " + jsonString(f.getAbsolutePath())
+                    + ", \"bytes\": " + f.length() + "}");
+        }
+
+        private static long cpuNanos(){
+            try {
+                return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+            } catch(UnsupportedOperationException e){
+                return 0;
+            }
+        }
+
+        private static long allocatedBytes(){
+            if(THREADS instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+            return 0;
+        }
+
+        static String jsonString(String s){
+            if(s == null)
+                return "null";
+            StringBuilder sb = new StringBuilder("\"");
+            for(char c : s.toCharArray()){
+                if(c == '"' || c == '\\')
+                    sb.append('\\').append(c);
+                else if(c < 0x20)
+                    sb.append(String.format("\\u%04x", (int) c));
+                else
+                    sb.append(c);
+            }
+            return sb.append('"').toString();
+        }
+
+        synchronized long vivadoNanos(){
+            long ns = 0;
+            for(Phase p : phases)
+                ns += p.vivado_ns;
+            return ns;
+        }
+
+        /**
+         * @return The report as JSON. Times are in nanoseconds.
+         */
+        synchronized String toJson(String design_name){
+            long wall = System.nanoTime() - start_ns;
+            long vivado = vivadoNanos();
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\n");
+            sb.append("  \"design\": ").append(jsonString(design_name)).append(",\n");
+            sb.append("  \"start_ms\": ").append(start_ms).append(",\n");
+            sb.append("  \"wall_ns\": ").append(wall).append(",\n");
+            sb.append("  \"jvm_ns\": ").append(wall - vivado).append(",\n");
+            sb.append("  \"vivado_ns\": ").append(vivado).append(",\n");
+            sb.append("  \"phases\": [");
+            for(int i = 0 ; i < phases.size() ; i++){
+                Phase p = phases.get(i);
+                sb.append(i == 0 ? "\n" : ",\n");
+                sb.append("    {\"name\": ").append(jsonString(p.name))
+                  .append(", \"start_ms\": ").append(p.start_ms)
+                  .append(", \"wall_ns\": ").append(p.wall_ns)
+                  .append(", \"jvm_ns\": ").append(p.jvmNanos())
+                  .append(", \"vivado_ns\": ").append(p.vivado_ns)
+                  .append(", \"cpu_ns\": ").append(p.cpu_ns)
+                  .append(", \"allocated_bytes\": ").append(p.allocated_bytes)
+                  .append(", \"bytes_read\": ").append(p.bytes_read)
+                  .append(", \"bytes_written\": ").append(p.bytes_written)
+                  .append(", \"vivado_peak_mb\": ").append(p.vivado_peak_mb)
+                  .append(", \"files\": [").append(String.join(", ", p.files)).append("]}");
+            }
+            sb.append("\n  ]\n}\n");
+            return sb.toString();
+        }
+
+        /**
+         * @param extra More fields of the run, strings and numbers.
+         * @return One line of run history (see RunHistory) for this run.
+         */
+        synchronized String historyRecord(String design_name, String input_sha256, int probe_count,
+                int probe_depth, String mode, Map<String, Object> extra){
+            long wall = System.nanoTime() - start_ns;
+            long vivado = vivadoNanos();
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"time_ms\": ").append(start_ms);
+            sb.append(", \"design\": ").append(jsonString(design_name));
+            sb.append(", \"input_sha256\": ").append(jsonString(input_sha256));
+            sb.append(", \"probe_count\": ").append(probe_count);
+            sb.append(", \"probe_depth\": ").append(probe_depth);
+            sb.append(", \"mode\": ").append(jsonString(mode));
+            for(Entry<String, Object> e : extra.entrySet())
+                sb.append(", ").append(jsonString(e.getKey())).append(": ").append((e.getValue() instanceof Number)
+                        ? e.getValue().toString() : jsonString(e.getValue() == null ? null : e.getValue().toString()));
+            sb.append(", \"java\": ").append(jsonString(System.getProperty("java.version")));
+            sb.append(", \"vivado_version\": ").append(jsonString(vivado_version));
+            sb.append(", \"wall_ns\": ").append(wall);
+            sb.append(", \"jvm_ns\": ").append(wall - vivado);
+            sb.append(", \"vivado_ns\": ").append(vivado);
+            sb.append(", \"vivado_peak_mb\": ").append(vivadoPeakMB());
+            sb.append(", \"phases\": {");
+            for(int i = 0 ; i < phases.size() ; i++){
+                Phase p = phases.get(i);
+                sb.append(i == 0 ? "" : ", ").append(jsonString(p.name))
+                  .append(": {\"wall_ns\": ").append(p.wall_ns)
+                  .append(", \"cpu_ns\": ").append(p.cpu_ns)
+                  .append(", \"vivado_ns\": ").append(p.vivado_ns)
+                  .append(", \"allocated_bytes\": ").append(p.allocated_bytes).append("}");
+            }
+            return sb.append("}}").toString();
+        }
+
+        /**
+         * @return Table of the phases for printing.
+         */
+        synchronized String summary(){
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-18s  %10s  %10s  %10s  %12s%n", "phase", "wall (s)", "jvm (s)", "vivado (s)", "alloc (MB)"));
+            for(Phase p : phases)
+                sb.append(String.format("%-18s  %10.1f  %10.1f  %10.1f  %12.1f%n", p.name, p.wall_ns / 1e9,
+                        p.jvmNanos() / 1e9, p.vivado_ns / 1e9, p.allocated_bytes / 1e6));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Statistics of one run of my_updateProbeConnections().
+     */
+    static class ProbeRouteResult {
+        int pins = 0;       // probe site pins that needed routing
+        int routed = 0;     // of those, how many the router routed
+        int tied = 0;       // probe pins tied to GND or VCC, left for vivado to route
+        long pips = 0;      // pips added to the probed nets, a measure of routed wirelength
+        long ns = 0;
+        PinOrder order = PinOrder.DEFAULT;
+        Map<String, Integer> latency = new HashMap<>();    // probe wire to pipeline stages (clock cycles) added
+        String pipeline = null;     // summary of the pipelining, if it was requested
+        long tiles = 0;             // manhattan distance from probed net sources to ila flops, summed
+        int tiles_n = 0;            // over this many probes
+        Set<String> nets = new HashSet<>();    // physical nets changed by reconnection, for vivado to finish routing
+        boolean static_nets = false;    // pins were connected to GND or VCC, which vivado doesn't know by name
+        List<RouterPass> passes = new ArrayList<>();
+
+        double avgTiles(){
+            return (tiles_n == 0) ? 0 : tiles / (double) tiles_n;
+        }
+
+        boolean fullyRouted(){
+            return routed == pins;
+        }
+
+        /**
+         * Fully routed beats partly routed, then more routed pins, then fewer pips, then less time.
+         */
+        boolean betterThan(ProbeRouteResult o){
+            if(fullyRouted() != o.fullyRouted())
+                return fullyRouted();
+            if(routed != o.routed)
+                return routed > o.routed;
+            if(pips != o.pips)
+                return pips < o.pips;
+            return ns < o.ns;
+        }
+
+        static long countPIPs(Collection<Net> nets){
+            long n = 0;
+            for(Net net : nets)
+                n += net.getPIPs().size();
+            return n;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder sb = new StringBuilder(String.format("Routed %d of %d probe pins using %d pips in %.1f s.",
+                    routed, pins, pips, ns / 1e9));
+            if(order != PinOrder.DEFAULT)
+                sb.append(" Pins ordered " + order + ".");
+            if(tiles_n > 0)
+                sb.append(String.format(" Average probe route length %.1f tiles.", avgTiles()));
+            if(pipeline != null)
+                sb.append(" " + pipeline);
+            if(tied > 0)
+                sb.append(" Tied off " + tied + " unused probe pins.");
+            // a single unbounded pass is the plain route, nothing more to say
+            if(passes.size() > 1 || (passes.size() == 1 && (passes.get(0).region != null || passes.get(0).groups > 0)))
+                for(RouterPass p : passes)
+                    sb.append("\n  ").append(p);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An order to hand probe pins to the router in. The router routes pins one after another, so pins
+     * routed early get the shortest paths and can block later ones.
+     */
+    static class PinOrder {
+        static final String PROBE = "probe";                        // order of the probe map
+        static final String LONGEST_FIRST = "longest_first";        // farthest from their net's source first
+        static final String NEAREST_ILA_FIRST = "nearest_ila_first";// sources nearest the ila first
+        static final String RANDOM = "random";
+        static final PinOrder DEFAULT = new PinOrder(PROBE, 0);
+
+        final String name;
+        final long seed;    // only used by random
+
+        PinOrder(String name, long seed){
+            this.name = name;
+            this.seed = seed;
+        }
+
+        /**
+         * @return The order with this name, or null if there is none.
+         */
+        static PinOrder parse(String name, String seed){
+            if(name == null)
+                return null;
+            switch(name){
+                case PROBE:
+                    return DEFAULT;
+                case LONGEST_FIRST:
+                case NEAREST_ILA_FIRST:
+                    return new PinOrder(name, 0);
+                case RANDOM:
+                    try {
+                        return new PinOrder(name, Long.parseLong(seed));
+                    } catch(NumberFormatException nfe){
+                        return null;
+                    }
+                default:
+                    return null;
+            }
+        }
+
+        private static Tile sourceTile(SitePinInst p){
+            SitePinInst src = p.getNet().getSource();
+            return (src == null) ? null : src.getTile();
+        }
+
+        /**
+         * Sorts pins into this order. Pins whose net has no placed source go last.
+         */
+        void sort(List<SitePinInst> pins){
+            switch(name){
+                case LONGEST_FIRST: {
+                    Map<SitePinInst, Integer> dist = new HashMap<>();
+                    for(SitePinInst p : pins){
+                        Tile t = sourceTile(p);
+                        dist.put(p, (t == null) ? -1 : t.getManhattanDistance(p.getTile()));
+                    }
+                    pins.sort((a, b) -> Integer.compare(dist.get(b), dist.get(a)));
+                    break;
+                }
+                case NEAREST_ILA_FIRST: {
+                    // distance from the centre of the ila flops
+                    double col = 0, row = 0;
+                    for(SitePinInst p : pins){
+                        col += p.getTile().getColumn();
+                        row += p.getTile().getRow();
+                    }
+                    col /= Math.max(1, pins.size());
+                    row /= Math.max(1, pins.size());
+                    Map<SitePinInst, Double> dist = new HashMap<>();
+                    for(SitePinInst p : pins){
+                        Tile t = sourceTile(p);
+                        dist.put(p, (t == null) ? Double.MAX_VALUE : Math.abs(t.getColumn() - col) + Math.abs(t.getRow() - row));
+                    }
+                    pins.sort((a, b) -> Double.compare(dist.get(a), dist.get(b)));
+                    break;
+                }
+                case RANDOM:
+                    Collections.shuffle(pins, new Random(seed));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public String toString(){
+            return name.equals(RANDOM) ? name + " (seed " + seed + ")" : name;
+        }
+    }
+
+    /**
+     * One call of the router on some probe pins, inside a routing region or unbounded.
+     */
+    static class RouterPass {
+        String region = null;   // pblock range, null if unbounded
+        int groups = 0;         // for a parallel pass, the groups of pins routed on threads threads
+        int threads = 1;
+        int conflicts = 0;      // nets whose parallel route was dropped for using another group's node
+        int pins = 0;
+        int routed = 0;
+        long ns = 0;
+        long pips = 0;          // pips the pass added to the nets of its pins, the length of the routes it found
+
+        /**
+         * @return Pips on the nets of pins, each net counted once.
+         */
+        static long pipsOf(Collection<SitePinInst> pins){
+            Set<Net> nets = new HashSet<>();
+            for(SitePinInst p : pins)
+                nets.add(p.getNet());
+            return ProbeRouteResult.countPIPs(nets);
+        }
+
+        @Override
+        public String toString(){
+            String where = (groups > 0) ? String.format("%d groups on %d threads:", groups, threads)
+                    : (region == null) ? "unbounded:" : "inside " + region + ":";
+            return String.format("%-34s routed %d of %d pins in %.2f s, %d pips added.", where, routed, pins,
+                    ns / 1e9, pips)
+                    + (groups > 0 ? " " + conflicts + " nets rerouted for conflicts." : "");
+        }
+    }
+
+    /**
+     * Chooses clock regions for the ila before vivado places it: the rectangle of clock regions around the
+     * centroid of the sources of the probed nets (weighted by the probes on each net), grown until it has
+     * enough free block rams for the probe depth and free slices for the ila logic.
+     */
+    static class IlaPlacement {
+        static final String PBLOCK = "iladebug_ila";
+        static final int RAMB36_BITS = 36 * 1024;
+        // rough size of the ila logic, in flops, and flops per slice (7 series has the fewest)
+        static final int BASE_FFS = 1500;
+        static final int FFS_PER_PROBE = 3;
+        static final int FFS_PER_SLICE = 8;
+
+        int cx, cy;                 // centroid clock region
+        int sources = 0;            // probes whose source sites were used
+        String inst = ProbeMap.ILA_INST;
+        String pblock = PBLOCK;
+        int x0, y0, x1, y1;         // chosen clock regions
+        int rams_needed, slices_needed;
+        int rams_free = 0, slices_free = 0;
+        boolean fits = false;
+
+        private static boolean isRamb36(SiteTypeEnum t){
+            return t.name().startsWith("RAMB") && t.name().contains("36");
+        }
+
+        /**
+         * @return The placement, or null if no probed net has a placed source.
+         */
+        static IlaPlacement plan(Design design, HierNameIndex index, ProbeMap probe_map, String default_net,
+                    int probe_count, int probe_depth){
+            IlaPlacement pl = new IlaPlacement();
+            long sx = 0, sy = 0;
+            for(int p = 0 ; p < probe_map.length() ; p++){
+                String net = probe_map.get(p);
+                if(net == null || isTieOff(net) || net.equals(default_net))
+                    continue;
+                Net phys = index.getParentNet(net);
+                SitePinInst src = (phys == null) ? null : phys.getSource();
+                ClockRegion cr = (src == null) ? null : src.getSite().getClockRegion();
+                if(cr == null)
+                    continue;
+                sx += cr.getInstanceX();
+                sy += cr.getInstanceY();
+                pl.sources++;
+            }
+            if(pl.sources == 0)
+                return null;
+            pl.cx = (int) Math.round(sx / (double) pl.sources);
+            pl.cy = (int) Math.round(sy / (double) pl.sources);
+            pl.rams_needed = (int) Math.ceil(probe_count * (double) probe_depth / RAMB36_BITS);
+            pl.slices_needed = (BASE_FFS + FFS_PER_PROBE * probe_count + FFS_PER_SLICE - 1) / FFS_PER_SLICE;
+
+            // free block rams and slices of each clock region
+            Map<String, int[]> free = new HashMap<>();
+            int max_x = 0, max_y = 0;
+            for(SiteTypeEnum type : SiteTypeEnum.values()){
+                boolean ram = isRamb36(type);
+                if(!ram && type != SiteTypeEnum.SLICEL && type != SiteTypeEnum.SLICEM)
+                    continue;
+                Site[] sites = design.getDevice().getAllSitesOfType(type);
+                if(sites == null)
+                    continue;
+                for(Site s : sites){
+                    ClockRegion cr = s.getClockRegion();
+                    if(cr == null)
+                        continue;
+                    max_x = Math.max(max_x, cr.getInstanceX());
+                    max_y = Math.max(max_y, cr.getInstanceY());
+                    if(design.getSiteInstFromSite(s) != null)
+                        continue;
+                    int[] f = free.computeIfAbsent(cr.getInstanceX() + "," + cr.getInstanceY(), k -> new int[2]);
+                    f[ram ? 0 : 1]++;
+                }
+            }
+
+            for(int r = 0 ; ; r++){
+                pl.x0 = Math.max(0, pl.cx - r);
+                pl.y0 = Math.max(0, pl.cy - r);
+                pl.x1 = Math.min(max_x, pl.cx + r);
+                pl.y1 = Math.min(max_y, pl.cy + r);
+                pl.rams_free = 0;
+                pl.slices_free = 0;
+                for(int x = pl.x0 ; x <= pl.x1 ; x++){
+                    for(int y = pl.y0 ; y <= pl.y1 ; y++){
+                        int[] f = free.get(x + "," + y);
+                        if(f != null){
+                            pl.rams_free += f[0];
+                            pl.slices_free += f[1];
+                        }
+                    }
+                }
+                pl.fits = pl.rams_free >= pl.rams_needed && pl.slices_free >= pl.slices_needed;
+                boolean whole = pl.x0 == 0 && pl.y0 == 0 && pl.x1 == max_x && pl.y1 == max_y;
+                if(pl.fits || whole)
+                    return pl;
+            }
+        }
+
+        String range(){
+            return "CLOCKREGION_X" + x0 + "Y" + y0 + ":CLOCKREGION_X" + x1 + "Y" + y1;
+        }
+
+        /**
+         * @return Tcl that puts the ila in a pblock of the chosen clock regions. It fails if the pblock gets
+         * no cell, rather than leave the ila unconstrained.
+         */
+        List<String> tcl(){
+            List<String> lines = new ArrayList<>();
+            lines.add("# Keeps the ila near the probed logic. Written by ILADebug.");
+            lines.add("create_pblock " + pblock);
+            lines.add("resize_pblock [get_pblocks " + pblock + "] -add {" + range() + "}");
+            lines.add("add_cells_to_pblock [get_pblocks " + pblock + "] [get_cells {" + inst + "}]");
+            lines.add("if {[llength [get_cells -quiet -of_objects [get_pblocks " + pblock + "]]] == 0} {");
+            lines.add("    error \"ILADebug: no cell was added to pblock " + pblock + " for " + inst + ".\"");
+            lines.add("}");
+            return lines;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s: centroid of %d probe sources is clock region X%dY%d. %s has %d of %d block rams "
+                    + "and %d of %d slices needed free.", inst, sources, cx, cy, range(), rams_free, rams_needed,
+                    slices_free, slices_needed);
+        }
+    }
+
+    /**
+     * Inserts pipeline flops (FDRE on the ila clock) between probed nets and the ila. The number of stages
+     * of a probe is chosen from a rough estimate of its route delay, from the distance between the net's
+     * source and the ila flop. Stages are spread evenly between the two and placed in slices that were
+     * empty, so their clock, enable and reset (the same for every stage) don't clash with the design's.
+     * Only the D and Q pins are routed by RapidWright; vivado routes the clock, enable and reset.
+     * One pipeliner is used per call to my_updateProbeConnections(), per design and per ila.
+     */
+    static class ProbePipeliner {
+        // rough delays for the estimate: clock to out, setup and site routing of one stage, and
+        // interconnect per tile of manhattan distance
+        static final double STAGE_PS = 500;
+        static final double TILE_PS = 20;
+        static final int MAX_STAGES = 4;
+        // how far (in slices) from the ideal spot to look for an empty slice
+        static final int SEARCH_RADIUS = 40;
+        private static final Pattern FF_BEL = Pattern.compile("[A-H]FF");
+
+        final Design design;
+        final String top_inst;  // hierarchical name of the instance the ila is in, the stages go there too
+        final EDIFCell top;     // and its cell
+        final double period_ps;
+        EDIFNet clk, vcc, gnd;
+        Net clk_phys;
+        // flop bels still free in the slices taken for stages
+        private final Map<Site, List<BEL>> free_bels = new HashMap<>();
+        private final Set<Site> full = new HashSet<>();
+
+        int probes = 0;         // probes given stages
+        int flops = 0;
+        int last_stages = 0;    // stages inserted by the last call of insert()
+        EDIFNet last_net = null;    // logical net in top of the last stage's output, for the ila probe pin
+        int not_placed = 0;     // stages skipped for want of an empty slice nearby
+        int skipped = 0;        // probes not pipelined as their source isn't placed in a slice
+        double worst_ps = 0;    // estimated delay of the slowest probe route without stages
+        double worst_pipelined_ps = 0;  // and of the slowest segment with them
+
+        ProbePipeliner(Design design, String top_inst, EDIFCell top, double mhz){
+            this.design = design;
+            this.top_inst = top_inst;
+            this.top = top;
+            this.period_ps = 1e6 / mhz;
+        }
+
+        static double delay(int tiles){
+            return STAGE_PS + TILE_PS * tiles;
+        }
+
+        /**
+         * @return Stages needed for a route over tiles tiles to meet the clock period.
+         */
+        int stages(int tiles){
+            if(delay(tiles) <= period_ps)
+                return 0;
+            if(period_ps <= STAGE_PS)
+                return MAX_STAGES;
+            return Math.min(MAX_STAGES, (int) Math.ceil(TILE_PS * tiles / (period_ps - STAGE_PS)) - 1);
+        }
+
+        /**
+         * @return A free flop bel in the empty (or already ours) slice nearest slice x, y, or null.
+         */
+        private BEL takeFlop(int x, int y, Site[] site){
+            for(int r = 0 ; r <= SEARCH_RADIUS ; r++){
+                for(int dx = -r ; dx <= r ; dx++){
+                    for(int dy = -r ; dy <= r ; dy++){
+                        if(Math.max(Math.abs(dx), Math.abs(dy)) != r || x + dx < 0 || y + dy < 0)
+                            continue;
+                        Site s = design.getDevice().getSite("SLICE_X" + (x + dx) + "Y" + (y + dy));
+                        if(s == null || full.contains(s))
+                            continue;
+                        List<BEL> bels = free_bels.get(s);
+                        if(bels == null){
+                            if(design.getSiteInstFromSite(s) != null){
+                                full.add(s);
+                                continue;
+                            }
+                            bels = new ArrayList<>();
+                            for(BEL b : s.getBELs())
+                                if(FF_BEL.matcher(b.getName()).matches())
+                                    bels.add(b);
+                            free_bels.put(s, bels);
+                        }
+                        if(bels.isEmpty()){
+                            full.add(s);
+                            continue;
+                        }
+                        site[0] = s;
+                        return bels.remove(0);
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Inserts the stages the route from the source of d_phys to the ila flop at sink needs.
+         * @param d Logical net driven by the probed net, the ila probe pin is not on it.
+         * @param d_phys Physical net of the probed net.
+         * @param name Prefix for the names of the new cells and nets.
+         * @param pins D input pins of the stages are added here, for routing.
+         * @return Physical net of the last stage's output, or d_phys if no stage was inserted. If stages were
+         * inserted, last_net is its logical net.
+         */
+        Net insert(EDIFNet d, Net d_phys, Site sink, String name, List<SitePinInst> pins){
+            last_stages = 0;
+            last_net = null;
+            SitePinInst src = d_phys.getSource();
+            if(src == null || !RoutingRegion.isSlice(src.getSite())){
+                skipped++;
+                return d_phys;
+            }
+            int tiles = src.getTile().getManhattanDistance(sink.getTile());
+            int stages = stages(tiles);
+            worst_ps = Math.max(worst_ps, delay(tiles));
+            int x0 = src.getSite().getInstanceX(), y0 = src.getSite().getInstanceY();
+            int x1 = sink.getInstanceX(), y1 = sink.getInstanceY();
+
+            EDIFNet net = d;
+            Net phys = d_phys;
+            int placed = 0;
+            for(int j = 1 ; j <= stages ; j++){
+                Site[] site = new Site[1];
+                BEL bel = takeFlop(x0 + (x1 - x0) * j / (stages + 1), y0 + (y1 - y0) * j / (stages + 1), site);
+                if(bel == null){
+                    not_placed++;
+                    continue;
+                }
+                String ff_name = name + "_s" + j;
+                // the flop and its nets are in top, next to the ila, and physical names are hierarchical
+                Cell ff = design.createAndPlaceCell(top, ff_name, Unisim.FDRE, site[0].getName() + "/" + bel.getName());
+                EDIFCellInst inst = ff.getEDIFCellInst();
+                net.createPortInst("D", inst);
+                clk.createPortInst("C", inst);
+                vcc.createPortInst("CE", inst);
+                gnd.createPortInst("R", inst);
+                EDIFNet q = top.createNet(ff_name + "_q");
+                q.createPortInst("Q", inst);
+
+                String letter = bel.getName().substring(0, 1);
+                SiteInst si = ff.getSiteInst();
+                si.routeIntraSiteNet(phys, site[0].getBELPin(letter + "X"), bel.getPin("D"));
+                SitePinInst d_pin = new SitePinInst(false, letter + "X", si);
+                phys.addPin(d_pin);
+                pins.add(d_pin);
+
+                Net q_phys = design.createNet(top_inst + "/" + q.getName());
+                si.routeIntraSiteNet(q_phys, bel.getPin("Q"), site[0].getBELPin(letter + "Q"));
+                q_phys.addPin(new SitePinInst(true, letter + "Q", si));
+                net = q;
+                phys = q_phys;
+                placed++;
+            }
+            if(placed > 0){
+                probes++;
+                flops += placed;
+            }
+            last_stages = placed;
+            if(placed > 0)
+                last_net = net;
+            worst_pipelined_ps = Math.max(worst_pipelined_ps, delay((int) Math.ceil(tiles / (double) (placed + 1))));
+            return phys;
+        }
+
+        /**
+         * @return Estimated fmax of the probe routes before and after pipelining, in MHz.
+         */
+        String fmax(){
+            return String.format("Estimated probe route fmax %.0f MHz without stages, %.0f MHz with them (target %.0f MHz).",
+                    1e6 / worst_ps, 1e6 / worst_pipelined_ps, 1e6 / period_ps);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Inserted %d pipeline flops on %d probes.", flops, probes)
+                    + (skipped > 0 ? " " + skipped + " probes with sources outside slices weren't pipelined." : "")
+                    + (not_placed > 0 ? " " + not_placed + " stages found no empty slice nearby." : "")
+                    + (worst_ps > 0 ? " " + fmax() : "");
+        }
     }
-    
-    static enum TCLEnum {
-        SOURCE_RW("source " + FileTools.getRapidWrightPath() + File.separator + FileTools.TCL_FOLDER_NAME
-                        + File.separator + "rapidwright.tcl", "qv", null),
-        OPEN_DCP("open_checkpoint", "qv", ".dcp"),
-        WRITE_DCP("write_checkpoint", "qvf", ".dcp"),
-        PLACE("place_design", "qv", null),
-        ROUTE("route_design", "qv", null),
-        WRITE_EDIF("write_edif", "qvf", ".edf"),
-        WRITE_LTX("write_debug_probes", "qvf", ".ltx"),
-        WRITE_BITSTREAM("write_bitstream", "qvf", ".bit");
 
-        private final String command;
-        private final String options;
-        private final String extension;
-        private final String force = "-force";
-        private final String quiet = "-quiet";
-        private final String verbose = "-verbose";
+    /**
+     * A rectangle of SLICE sites bounding the probe routes, so the router doesn't search the whole device.
+     * Built from the ila sink sites and the source sites of the probed nets. Sites that aren't SLICEs
+     * (block rams, dsps, io) don't have slice coordinates and are left out; their pins are routed once
+     * the region has grown to reach them.
+     */
+    static class RoutingRegion {
+        // slice extent of each device, sweep threads share it
+        private static final Map<String, int[]> DEVICE_EXTENT = new HashMap<>();
 
-        TCLEnum(String command, String options, String extension){
-            this.command = command;
-            this.options = options;
-            this.extension = extension;
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE;
+        int x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        int skipped = 0;    // sites added that aren't SLICEs
+
+        static boolean isSlice(Site s){
+            return s.getSiteTypeEnum() == SiteTypeEnum.SLICEL || s.getSiteTypeEnum() == SiteTypeEnum.SLICEM;
         }
-        String ext(){return extension;}
-        String cmd(){return command;}
-        String cmd(String opts){
-            StringBuffer sb = new StringBuffer(command);
-            if(opts != null) {
-                for(int i = 0 ; i < opts.length() ; i++){
-                    if(options.indexOf(opts.charAt(i)) == -1)
+
+        void add(Site s){
+            if(s == null)
+                return;
+            if(!isSlice(s)){
+                skipped++;
+                return;
+            }
+            x0 = Math.min(x0, s.getInstanceX());
+            y0 = Math.min(y0, s.getInstanceY());
+            x1 = Math.max(x1, s.getInstanceX());
+            y1 = Math.max(y1, s.getInstanceY());
+        }
+
+        boolean isEmpty(){
+            return x0 > x1;
+        }
+
+        /**
+         * @return Largest slice x and y of the device.
+         */
+        static synchronized int[] extent(Device device){
+            int[] e = DEVICE_EXTENT.get(device.getName());
+            if(e == null){
+                e = new int[]{0, 0};
+                for(SiteTypeEnum type : new SiteTypeEnum[]{SiteTypeEnum.SLICEL, SiteTypeEnum.SLICEM}){
+                    Site[] sites = device.getAllSitesOfType(type);
+                    if(sites == null)
                         continue;
-                    switch(opts.charAt(i)){
-                        case 'f':
-                            sb.append(" " + force);
-                            break;
-                        case 'q':
-                            sb.append(" " + quiet);
-                            break;
-                        case 'v':
-                            sb.append(" " + verbose);
-                        default:
-                            break;
+                    for(Site s : sites){
+                        e[0] = Math.max(e[0], s.getInstanceX());
+                        e[1] = Math.max(e[1], s.getInstanceY());
                     }
                 }
+                DEVICE_EXTENT.put(device.getName(), e);
             }
-            return sb.toString();
+            return e;
         }
-    }
 
-    static class TCLCommand {
-        TCLEnum tcl_cmd;
-        String options;
-        String filename;
-        
-        TCLCommand(TCLEnum tcl_cmd, String filename){
-            this(tcl_cmd, null, filename);
+        /**
+         * @return This region grown by margin slices on every side, clipped to the device.
+         */
+        RoutingRegion grow(int margin, Device device){
+            int[] e = extent(device);
+            RoutingRegion r = new RoutingRegion();
+            r.x0 = Math.max(0, x0 - margin);
+            r.y0 = Math.max(0, y0 - margin);
+            r.x1 = Math.min(e[0], x1 + margin);
+            r.y1 = Math.min(e[1], y1 + margin);
+            r.skipped = skipped;
+            return r;
         }
-        TCLCommand(TCLEnum tcl_cmd, String options, String filename){
-            this.tcl_cmd = tcl_cmd;
-            this.options = options;
-            if(tcl_cmd.ext() != null)
-                this.filename = FileTools.removeFileExtension(filename) + tcl_cmd.ext();
-            else
-                this.filename = null;
+
+        /**
+         * @return True if the region reaches every edge of the device.
+         */
+        boolean coversDevice(Device device){
+            int[] e = extent(device);
+            return x0 == 0 && y0 == 0 && x1 == e[0] && y1 == e[1];
+        }
+
+        PBlock toPBlock(Device device){
+            return new PBlock(device, toString());
         }
+
         @Override
         public String toString(){
-            if(filename == null || tcl_cmd.ext() == null)
-                return tcl_cmd.cmd(options);
-            return tcl_cmd.cmd(options) + " " + filename;
+            return "SLICE_X" + x0 + "Y" + y0 + ":SLICE_X" + x1 + "Y" + y1;
+        }
+    }
+
+    /**
+     * One probes file evaluated by sweepProbes(), or one pin order tried by retryProbeRouting().
+     */
+    static class SweepCandidate {
+        File file;
+        ProbeMap probe_map;
+        ProbeRouteResult result = null;
+        String error = null;
+        Design design = null;   // routed copy, only kept for the best candidate
+
+        /**
+         * Fully routed beats partly routed, then more routed pins, then fewer pips, then less time.
+         */
+        boolean betterThan(SweepCandidate o){
+            return result.betterThan(o.result);
         }
     }
 
     class TCLScript {
         List<TCLCommand> tcl_script = null;
-        private static final String run_vivado = "vivado -mode batch -log vivado.log -journal vivado.jou -source";
+        private static final String run_vivado = "vivado -mode batch -log %s -journal %s -source %s";
         String tcl_script_name = null;
         String output_file = null;
         String options = null;
@@ -265,6 +3342,13 @@ public class ILADebug {
             this(null, input_dcp, output_file, (quiet() ? "q" : "") + (extraVerbose() ? "v" : "") + (force() ? "f" : ""), tcl_script_name);
         }
 
+        /**
+         * A script that only sources RapidWright. Commands are added with add(TCLCommand).
+         */
+        TCLScript(String tcl_script_name){
+            this(null, null, null, (quiet() ? "q" : "") + (extraVerbose() ? "v" : "") + (force() ? "f" : ""), tcl_script_name);
+        }
+
         /**
          * Same, but options are taken from those input at command line.
          */
@@ -291,7 +3375,8 @@ public class ILADebug {
                 tcl_script.add(new TCLCommand(TCLEnum.SOURCE_RW, null));
             else
                 tcl_script.add(new TCLCommand(TCLEnum.SOURCE_RW, "q", null));
-            tcl_script.add(new TCLCommand(TCLEnum.OPEN_DCP, options, input_dcp));
+            if(input_dcp != null)
+                tcl_script.add(new TCLCommand(TCLEnum.OPEN_DCP, options, input_dcp));
             
             if(cmds != null)
                 for(TCLEnum te : cmds)
@@ -304,6 +3389,9 @@ public class ILADebug {
         void add(TCLEnum te, String opts){
             tcl_script.add(new TCLCommand(te, opts, output_file));
         }
+        void add(TCLCommand cmd){
+            tcl_script.add(cmd);
+        }
 
         /**
          * Write tcl script to file.
@@ -329,9 +3417,187 @@ public class ILADebug {
             if(!wrote)
                 return false;
             
-            FileTools.runCommand(run_vivado + " " + tcl_file.getAbsolutePath(), true);
+            long start = System.nanoTime();
+            try {
+                VivadoSession session = getVivadoSession();
+                if(session != null)
+                    return session.run(this);
+
+                // vivado in batch mode exits with an error if a command of the script fails
+                return FileTools.runCommand(String.format(run_vivado, new File(iii_dir, "vivado.log").getAbsolutePath(),
+                        new File(iii_dir, "vivado.jou").getAbsolutePath(), tcl_file.getAbsolutePath()), true) == 0;
+            } finally {
+                phases.addVivado(System.nanoTime() - start);
+                phases.vivadoLog(new File(iii_dir, "vivado.log"));
+            }
+        }
+    }
+
+    /**
+     * A long-lived 'vivado -mode tcl' process. TCL commands are sent to it over stdin and
+     * their completion is read back from stdout. Vivado is started and RapidWright is sourced
+     * once per run, and a checkpoint stays open between scripts as long as neither the open
+     * design nor the checkpoint file on disk has changed since it was opened or written.
+     */
+    class VivadoSession {
+        // the marker is built by tcl so an echo of the command itself never matches
+        private static final String done_marker = "#ILADEBUG_DONE ";
+        private static final String done_tcl = "[join {#ILADEBUG DONE} _] ";
+        // commands that leave the open design unchanged
+        private final EnumSet<TCLEnum> WRITE_ONLY = EnumSet.of(TCLEnum.SOURCE_RW, TCLEnum.WRITE_EDIF,
+                TCLEnum.WRITE_LTX, TCLEnum.WRITE_BITSTREAM);
+
+        private Process process = null;
+        private BufferedWriter to_vivado = null;
+        private BufferedReader from_vivado = null;
+        private int next_id = 0;
+        private boolean sourced_rw = false;
+
+        // checkpoint that the design open in vivado is identical to
+        private File open_dcp = null;
+        private long open_dcp_modified = 0;
+        private long open_dcp_length = 0;
+        // the open design was changed (placed, routed) since it was opened or written
+        private boolean dirty = false;
+
+        /**
+         * Start vivado.
+         * @return Success.
+         */
+        boolean start(){
+            try {
+                ProcessBuilder pb = new ProcessBuilder("vivado", "-mode", "tcl",
+                        "-log", new File(iii_dir, "vivado.log").getAbsolutePath(),
+                        "-journal", new File(iii_dir, "vivado.jou").getAbsolutePath());
+                pb.directory(pwd_dir);
+                pb.redirectErrorStream(true);
+                process = pb.start();
+                to_vivado = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+                from_vivado = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            } catch(IOException ioe){
+                printIfVerbose("Couldn't start vivado session (" + ioe.getMessage() + ").");
+                process = null;
+                return false;
+            }
+            printIfVerbose("Started vivado session.");
+            return true;
+        }
+
+        boolean isAlive(){
+            return process != null && process.isAlive();
+        }
+
+        /**
+         * Run all the commands of a script, skipping sourcing RapidWright and opening the
+         * checkpoint if the session already has them.
+         * @return True if all commands succeeded.
+         */
+        boolean run(TCLScript script){
+            for(TCLCommand cmd : script.tcl_script){
+                if(cmd.tcl_cmd == TCLEnum.SOURCE_RW){
+                    if(sourced_rw)
+                        continue;
+                    if(!run(cmd))
+                        return false;
+                    sourced_rw = true;
+                }
+                else if(cmd.tcl_cmd == TCLEnum.OPEN_DCP){
+                    File f = new File(cmd.filename);
+                    if(isOpen(f)){
+                        printIfVerbose("Reusing design already open in vivado '" + f.getAbsolutePath() + "'.");
+                        continue;
+                    }
+                    if(open_dcp != null || dirty)
+                        run(new TCLCommand(TCLEnum.CLOSE_DESIGN, "q", null));
+                    open_dcp = null;
+                    if(!run(cmd))
+                        return false;
+                    setOpen(f);
+                }
+                else {
+                    if(!run(cmd))
+                        return false;
+                    if(cmd.tcl_cmd == TCLEnum.WRITE_DCP)
+                        setOpen(new File(cmd.filename));
+                    else if(!WRITE_ONLY.contains(cmd.tcl_cmd))
+                        dirty = true; // placed, routed or replaced by another design
+                }
+            }
             return true;
         }
+
+        private boolean isOpen(File f){
+            return !dirty && open_dcp != null && open_dcp.getAbsoluteFile().equals(f.getAbsoluteFile())
+                    && f.lastModified() == open_dcp_modified && f.length() == open_dcp_length;
+        }
+
+        private void setOpen(File f){
+            open_dcp = f;
+            open_dcp_modified = f.lastModified();
+            open_dcp_length = f.length();
+            dirty = false;
+        }
+
+        /**
+         * Send one command to vivado and wait for it to finish. Vivado output is echoed to stdout.
+         * @return True if the command succeeded.
+         */
+        boolean run(TCLCommand cmd){
+            if(!isAlive())
+                return false;
+            int id = next_id++;
+            String line = "if {[catch {" + cmd + "} ila_debug_err]} {puts \"" + done_tcl + id + " 1 $ila_debug_err\"}"
+                    + " else {puts \"" + done_tcl + id + " 0\"}";
+            long start = System.nanoTime();
+            try {
+                to_vivado.write(line);
+                to_vivado.newLine();
+                to_vivado.flush();
+
+                String out;
+                while((out = from_vivado.readLine()) != null){
+                    int m = out.indexOf(done_marker + id + " ");
+                    if(m < 0){
+                        System.out.println(out);
+                        continue;
+                    }
+                    String[] result = out.substring(m + done_marker.length()).split(" ", 3);
+                    double secs = (System.nanoTime() - start) / 1e9;
+                    if(result[1].equals("0")){
+                        printIfVerbose(String.format("Vivado finished '%s' in %.1f s.", cmd, secs));
+                        return true;
+                    }
+                    MessageGenerator.briefError(String.format("Vivado failed '%s' after %.1f s: %s", cmd, secs,
+                            result.length > 2 ? result[2] : ""));
+                    return false;
+                }
+            } catch(IOException ioe){
+                MessageGenerator.briefError("Lost connection to vivado session (" + ioe.getMessage() + ").");
+            }
+            process = null;
+            return false;
+        }
+
+        /**
+         * Exit vivado and wait for it to finish.
+         */
+        void close(){
+            if(!isAlive())
+                return;
+            try {
+                to_vivado.write("exit");
+                to_vivado.newLine();
+                to_vivado.flush();
+                String out;
+                while((out = from_vivado.readLine()) != null)
+                    System.out.println(out);
+                process.waitFor();
+            } catch(IOException | InterruptedException e){
+                process.destroy();
+            }
+            process = null;
+            printIfVerbose("Closed vivado session.");
+        }
     }
 
 
@@ -348,17 +3614,51 @@ public class ILADebug {
     File input_probes_file = null;
     File output_probes_file = null;
 
+    VivadoSession vivado_session = null;
+    boolean batch_job = false;
+    IlaCoreCache ila_cache = null;
+
     Design design = null;
-    Map<String, String> probe_map = null;
+    ProbeMap probe_map = null;
+    // ilas by clock domain if an ila per clock was requested, else null. probe_map is then that of the first
+    List<IlaShard> ila_shards = null;
+    ProbeRouteResult probe_route_result = null;
+    // how the final stage routed: 'full', 'probe_nets' or 'probe_nets+full', recorded in the run history
+    String route_mode = null;
+    // clock regions the ila was placed in when the intermediate design was made (see IlaPlacement)
+    String ila_pblock = null;
+    HierNameIndex name_index = null;
+    IlaSinkTable sink_table = null;
+    // scan of input_probes_file for nets marked for debug, run while the design loads (see startDebugNetScan())
+    Future<List<String>> debug_net_scan = null;
+    MarkDebugScanner debug_net_scanner = null;
+    // nets marked for debug in the input dcp, if the probes came from them, recorded in the manifest
+    int input_debug_nets = -1;
+    PhaseRecorder phases = new PhaseRecorder();
+    boolean eco_base = false;   // design is the previous output, see ecoBaseUsable()
     int probe_count = 0;
     int probe_depth = 4096;
     String clk_net = null;
 
     String default_net = null;
     Map<String, String> meta_map = null;
+    IntermediateManifest manifest = null;
 
 
     private static final int MAX_PROBE_COUNT = 4096;
+    static final String INTERMEDIATE_HASH_KEY = "intermediate_dcp.sha256";
+    // metadataFile() suffixes for routing only the probe nets
+    static final String PROBE_NETS_SCRIPT = "_route_probe_nets.tcl";
+    static final String PROBE_NETS_STATUS = "_route_probe_nets.txt";
+    static final String ILA_HUB_SCRIPT = "_ila_hub.tcl";
+    static final String PIPELINED_MARK = "  # pipelined, ";
+    static final String ROUTE_ORDER_FILE = "_route_order.txt";
+    // times a routing region is grown for pins that failed inside it, before routing them unbounded
+    private static final int ROUTE_REGION_GROWS = 3;
+    // each routing thread after the first needs a copy of the whole design, see routeParallel()
+    private static final int MAX_ROUTE_THREADS = 4;
+    static final String TIE_GND = "<const0>";
+    static final String TIE_VCC = "<const1>";
 
     // constructor
     public ILADebug(){
@@ -397,6 +3697,32 @@ public class ILADebug {
     public boolean quiet(){
         return arg_map.containsKey("quiet");
     }
+    /**
+     * Returns the persistent vivado session, starting it if needed.
+     * @return null if vivado_session wasn't part of the command line args or the session couldn't be started.
+     */
+    private VivadoSession getVivadoSession(){
+        if(!arg_map.containsKey("vivado_session"))
+            return null;
+        if(vivado_session == null){
+            vivado_session = new VivadoSession();
+            if(!vivado_session.start()){
+                printIfVerbose("Running each tcl script in its own vivado process instead.");
+                arg_map.remove("vivado_session");
+                vivado_session = null;
+            }
+        }
+        return vivado_session;
+    }
+    /**
+     * Prints an error and exits. In a batch job, throws JobFailedException instead so other jobs keep running.
+     * @param s Error message.
+     */
+    private void errorAndExit(String s){
+        if(batch_job)
+            throw new JobFailedException(s);
+        MessageGenerator.briefErrorAndExit(s);
+    }
     /**
      * Prints the string if verbose was part of the command line args.
      * @param s String to be printed.
@@ -433,13 +3759,19 @@ public class ILADebug {
             sb.append(helpLine(a.toString(), a.getHelp(), longest));
         for(MyPositionalArg a : POSITIONAL_ARGS)
             sb.append(helpLine(a.toString(), a.getHelp(), longest));
+        sb.append("\nBATCH USAGE: [-b|--batch <job_file>] [-j|--jobs <threads>]\n");
+        sb.append("Run each line of job_file as the args of a separate run, on 'threads' threads in one JVM "
+                + "(default 1). Runs sharing a .iii directory never run at the same time.\n");
+        sb.append("\nREGRESSION " + RunHistory.USAGE);
+        sb.append("Compare the latest run on each input in the run history of iii_dir with earlier runs on the "
+                + "same input. Flag phases more than threshold_percent (default 20) slower than the median.\n");
         sb.append("\n");
         MessageGenerator.briefMessageAndExit(sb.toString());
     }
 
     private static final String[] HELP_SWITCH = {"-h", "--help"};
 
-    // used {c, d, f, h i, o, Pp, q, r, Vv}
+    // used {b, Cc, d, e, f, g, h i, j, k, l, m, n, o, Pp, q, r, s, t, Vv, Ww, y} (b and j by BatchRunner, j also for sweep and routing)
     private static final MyToken[] TOKEN_LIST = {
         new MyToken("input_probes_file", new String[]{"-i", "--input_probes"}, 
                 new String[]{"probes_txt/dcp"}, new boolean[]{true},
@@ -464,8 +3796,57 @@ public class ILADebug {
         new MyToken("clk_net", new String[]{"-c", "--probe_count"},
                 new String[]{"clk_net"}, new boolean[]{true},
                 "The net connecting to the clock. Default: 'clk_100MHz'."),
+        new MyToken("ila_cache", new String[]{"-C", "--ila_cache"},
+                new String[]{"cache_dir"}, new boolean[]{true},
+                "Reuse pre-implemented ila cores from this directory, and store newly generated ones there. "
+                + "Can be shared between designs and .iii directories."),
+        new MyToken("sweep", new String[]{"-w", "--sweep"},
+                new String[]{"probes_txt,..."}, new boolean[]{true},
+                "Instead of connecting the input probes, connect and route each of these comma separated probes "
+                + "files on its own copy of the intermediate design and report which ones route."),
+        new MyToken("sweep_best", new String[]{"-W", "--sweep_best"},
+                "With sweep, continue to full outputs using the best probes file."),
+        new MyToken("jobs", new String[]{"-j", "--jobs"},
+                new String[]{"threads"}, new boolean[]{true},
+                "Number of threads to use for sweep, or else for routing probes (split by clock region, at most "
+                + MAX_ROUTE_THREADS + "). Default: '1'."),
+        new MyToken("tie_off", new String[]{"-t", "--tie_off"},
+                new String[]{"gnd/vcc"}, new boolean[]{true},
+                "Tie unused probe wires to GND or VCC instead of connecting them to a reset (or other) net of "
+                + "the design. Tied wires aren't routed by RapidWright."),
+        new MyToken("eco", new String[]{"-e", "--eco"},
+                "Start from the previous output dcp and probes file and only reconnect probe wires whose net "
+                + "changed. Other probe routes are kept. Previous outputs are overwritten. Falls back to the "
+                + "full flow if they weren't made from the current intermediate design."),
+        new MyToken("route_margin", new String[]{"-m", "--route_margin"},
+                new String[]{"slices"}, new boolean[]{true},
+                "Route probes inside the box around the ila and the probed nets' drivers, grown by this many "
+                + "slices. Pins that fail are retried in larger boxes, then on the whole device. "
+                + "Default: route on the whole device."),
+        new MyToken("ila_per_clock", new String[]{"-k", "--ila_per_clock"},
+                "Insert an ila for each clock domain of the probed nets (the clock of each net's driver), and "
+                + "more for domains with over " + MAX_PROBE_COUNT + " probes. All are listed in one output "
+                + "probes file and one ltx. Can't be used with sweep or eco."),
+        new MyToken("ila_pblock", new String[]{"-g", "--ila_pblock"},
+                "When placing the ila, keep it to the clock regions around the probed logic that have enough free "
+                + "block rams for the probe depth. Only applies when the intermediate design is made."),
+        new MyToken("pipeline", new String[]{"-l", "--pipeline"},
+                new String[]{"mhz"}, new boolean[]{true},
+                "Insert pipeline flops on the ila clock into probe routes too long for this clock frequency. "
+                + "Pipelined probes are sampled a cycle late per flop, as noted in the output probes file. "
+                + "Can't be used with --eco."),
+        new MyToken("route_retry", new String[]{"-y", "--route_retry"},
+                new String[]{"seconds"}, new boolean[]{true},
+                "If some probes don't route, connect and route them again in other pin orders (longest first, "
+                + "nearest to the ila first, random), in parallel on copies of the intermediate design. Each "
+                + "attempt gets this many seconds. The order that routes every probe is used first in later runs."),
+        new MyToken("route_probe_nets", new String[]{"-n", "--route_probe_nets"},
+                "In the final stage, have vivado route only the nets changed by probe reconnection and keep "
+                + "all other routing. Falls back to routing the whole design if any net is left unrouted."),
         new MyToken("refresh", new String[]{"-r", "--refresh"},
                 "Force recompilation from input dcp. Ignore any intermediate designs."),
+        new MyToken("vivado_session", new String[]{"-s", "--vivado_session"},
+                "Run all tcl scripts in one persistent vivado process. Checkpoints stay open between scripts when unchanged."),
         new MyToken("force", new String[]{"-f", "--force"},
                 "Force overwrite of output files (intermediate files in .iii are always overwritten)."),
         new MyToken("quiet", new String[]{"-q", "--quiet"},
@@ -488,12 +3869,16 @@ public class ILADebug {
      * Takes in a command line list and parses it into a HashMap.
      * @param args command line list
      */
-    private void mapArgs(String[] args){
+    void mapArgs(String[] args){
         // if any argument is in the set of help switches, print help and exit
+        // (help would exit the jvm of a whole batch, so a job asking for it fails instead)
         for(String a : args)
             for(String sw : HELP_SWITCH)
-                if(a.equalsIgnoreCase(sw))
+                if(a.equalsIgnoreCase(sw)){
+                    if(batch_job)
+                        errorAndExit("'" + a + "' can't be used in a batch job line.\n");
                     printHelp();
+                }
 
         int positional_arg_counter = 0;
         for(int i = 0 ; i < args.length ; i++){
@@ -501,7 +3886,7 @@ public class ILADebug {
             if(args[i].startsWith("-") || args[i].startsWith("--")){
                 MyToken t = token_map.get(args[i]);
                 if(t == null)
-                    MessageGenerator.briefErrorAndExit("Unrecognized token at position " + i + ".\n");
+                    errorAndExit("Unrecognized token at position " + i + ".\n");
                 
                 ArrayList<String> a_list = new ArrayList<>();
                 for(int j = 0 ; j < t.args.length ; j++){
@@ -510,7 +3895,7 @@ public class ILADebug {
                         a = args[i+j+1];
                     } catch(ArrayIndexOutOfBoundsException iobe){
                         if(t.args[j].required)
-                            MessageGenerator.briefErrorAndExit(
+                            errorAndExit(
                                 "Not enough arguments for '" + args[i] + "' at position " + i + ".\n"
                                 + t.toString() + "\n"
                             );
@@ -519,7 +3904,7 @@ public class ILADebug {
                     }
                     if(a.startsWith("-") || a.startsWith("--")){
                         if(t.args[j].required)
-                            MessageGenerator.briefErrorAndExit(
+                            errorAndExit(
                                 "Not enough arguments for '" + args[i] + "' at position " + i + ".\n"
                                 + t.toString() + "\n"
                             );
@@ -535,102 +3920,378 @@ public class ILADebug {
             else {
                 if(positional_arg_counter >= POSITIONAL_ARGS.length)
                     continue;
-                
-                ArrayList<String> a_list = new ArrayList<>();
-                a_list.add(args[i]);
-                arg_map.put(POSITIONAL_ARGS[positional_arg_counter].name, a_list);
-                positional_arg_counter++;
+                
+                ArrayList<String> a_list = new ArrayList<>();
+                a_list.add(args[i]);
+                arg_map.put(POSITIONAL_ARGS[positional_arg_counter].name, a_list);
+                positional_arg_counter++;
+            }
+        }
+        if(positional_arg_counter < POSITIONAL_ARGS.length 
+                && POSITIONAL_ARGS[positional_arg_counter].required)
+            errorAndExit("Not enough positional arguments.\n");
+        // an eco only knows the stages of the probes it reconnects, and would leave those of the old nets behind
+        if(arg_map.containsKey("pipeline") && arg_map.containsKey("eco"))
+            errorAndExit("--pipeline can't be used with --eco.\n");
+    }
+
+    /**
+     * Read a mapping file. Ignores blank lines and lines beginning with '#'.
+     * Strips whitespace from read strings.
+     * @param filename File to read from.
+     * @param separator String that separates key from value.
+     * @param warn Print a warning if overwriting the same key?
+     * @return The mappings read from the file.
+     */
+    public static Map<String, String> readMapFile(String filename, String separator, boolean warn){
+        Map<String, String> m = new TreeMap<>();
+        List<String> lines = FileTools.getLinesFromTextFile(filename);
+		for(String line : lines){
+            if(line.trim().startsWith("#"))
+                continue;
+            if(line.trim().isEmpty())
+                continue;
+            String[] parts = line.split(separator);                
+            String ret = m.put(parts[0].trim(), parts[1].trim());
+            if(warn && ret != null){
+                MessageGenerator.briefMessage("Warning: Duplicate key '" + parts[0].trim() + "'.");
+                MessageGenerator.briefMessage("Overwriting '" + ret + "' with '" + parts[1].trim() + "'.");
+            }
+        }
+        return m;
+    }
+    
+    /**
+     * Writes the probe map (of every ila) to a file. The probe map is pairs of probe nets and the nets
+     * in the design that they are connected to.
+     * @param filename File to write probemap to.
+     */
+    public void writeProbesFile(String filename){
+        List<String> p = new ArrayList<>();
+        p.add("# Probe mapping: <full probe net path> -> <full debug net path>");
+        p.add("# probe_count of design that wrote this = " + probe_count);
+        if(manifest != null && manifest.get("intermediate_dcp.sha256") != null)
+            p.add("# " + INTERMEDIATE_HASH_KEY + " = " + manifest.get("intermediate_dcp.sha256"));
+
+        p.add("# " + TIE_GND + " and " + TIE_VCC + " are unused probe wires tied off to GND and VCC");
+        if(probe_route_result != null && !probe_route_result.latency.isEmpty())
+            p.add("# pipelined probes are sampled the given number of ila clock cycles after the net changes");
+        if(ila_shards != null)
+            for(IlaShard s : ila_shards)
+                p.add("# " + s);
+        for(ProbeMap map : probeMaps()){
+            for(int i = 0 ; i < map.length() ; i++){
+                if(!map.isAssigned(i))
+                    continue;
+                String net = map.get(i);
+                Integer stages = (probe_route_result == null) ? null : probe_route_result.latency.get(map.probe(i));
+                p.add(map.probe(i) + " " + net + (isTieOff(net) ? "  # tied off" : "")
+                        + (stages != null ? PIPELINED_MARK + stages + " cycle(s) late" : ""));
+            }
+        }
+        
+        printIfVerbose("\nWriting output probes file to '" + filename + "'.");
+        FileTools.writeLinesToTextFile(p, filename);
+    }
+
+    // Routes $ila_probe_nets, and the GND and VCC nets if $ila_probe_static_nets is set, then the whole design
+    // if that left any net unrouted. Options are passed to route_design. Times (ms) and the number of nets
+    // left by the targeted pass go to $ila_route_status.
+    private static final String ROUTE_PROBE_NETS_PROC = String.join("\n",
+            "proc ila_route_probe_nets {args} {",
+            "    global ila_probe_nets ila_probe_static_nets ila_route_status",
+            "    set nets [get_nets -quiet $ila_probe_nets]",
+            "    if {$ila_probe_static_nets} {",
+            "        lappend nets {*}[get_nets -quiet -hierarchical -filter {TYPE == POWER || TYPE == GROUND}]",
+            "    }",
+            "    set start [clock milliseconds]",
+            "    if {[llength $nets] > 0} {",
+            "        route_design {*}$args -nets $nets",
+            "    }",
+            "    set nets_ms [expr {[clock milliseconds] - $start}]",
+            "    set unrouted [llength [get_nets -quiet -hierarchical -top_net_of_hierarchical_group -filter "
+                    + "{ROUTE_STATUS == UNROUTED || ROUTE_STATUS == PARTIAL || ROUTE_STATUS == CONFLICTS "
+                    + "|| ROUTE_STATUS == ANTENNAS}]]",
+            "    set full_ms 0",
+            "    if {$unrouted > 0} {",
+            "        puts \"$unrouted nets unrouted after routing probe nets. Routing whole design.\"",
+            "        set start [clock milliseconds]",
+            "        route_design {*}$args",
+            "        set full_ms [expr {[clock milliseconds] - $start}]",
+            "    }",
+            "    set fd [open $ila_route_status w]",
+            "    puts $fd \"nets = [llength $nets]\"",
+            "    puts $fd \"nets_ms = $nets_ms\"",
+            "    puts $fd \"unrouted = $unrouted\"",
+            "    puts $fd \"full_ms = $full_ms\"",
+            "    close $fd",
+            "}");
+
+    /**
+     * Writes the tcl script sourced before TCLEnum.ROUTE_PROBE_NETS. It lists the physical nets changed
+     * by probe reconnection, whether GND or VCC pins were added, and defines the ila_route_probe_nets proc.
+     * @return The script, or null if no probes were reconnected in this run.
+     */
+    private File writeProbeNetsScript(){
+        if(probe_route_result == null || probe_route_result.nets.isEmpty() && !probe_route_result.static_nets){
+            printIfVerbose("No probe nets changed in this run. Routing whole design.");
+            return null;
+        }
+        List<String> nets = new ArrayList<>(probe_route_result.nets);
+        nets.sort(null);
+        List<String> lines = new ArrayList<>();
+        lines.add("# Nets changed by probe reconnection. Written by ILADebug.");
+        lines.add("set ila_probe_nets [list \\");
+        for(String net : nets)
+            lines.add("    {" + net + "} \\");
+        lines.add("]");
+        // GLOBAL_LOGIC0/1 aren't vivado net names, its GND and VCC nets are selected by type
+        lines.add("set ila_probe_static_nets " + (probe_route_result.static_nets ? 1 : 0));
+        File status = metadataFile(PROBE_NETS_STATUS);
+        status.delete();
+        lines.add("set ila_route_status {" + status.getAbsolutePath() + "}");
+        lines.add(ROUTE_PROBE_NETS_PROC);
+
+        File f = metadataFile(PROBE_NETS_SCRIPT);
+        FileTools.writeLinesToTextFile(lines, f.getAbsolutePath());
+        printIfVerbose("Wrote " + nets.size() + " probe nets to route to '" + f.getAbsolutePath() + "'.");
+        return f;
+    }
+
+    // The dbg_hub that comes with the ila core has one slave port, for u_ila_0. It is removed, the hub ports
+    // of all ilas are freed, and vivado inserts a hub with a slave port per ila, on the clock of the old hub.
+    private static final String ILA_HUB_TCL = String.join("\n",
+            "set ila_hub [get_cells -quiet -hierarchical -filter {REF_NAME =~ dbg_hub*}]",
+            "set ila_hub_clk [get_nets -quiet -of_objects [get_pins -quiet -of_objects $ila_hub -filter {REF_PIN_NAME == clk}]]",
+            "if {[llength $ila_hub] > 0} {",
+            "    remove_cell $ila_hub",
+            "}",
+            "foreach pin [get_pins -quiet -of_objects [get_cells -quiet top/u_ila_*] -filter {REF_PIN_NAME =~ sl_*port0*}] {",
+            "    disconnect_net -quiet -objects $pin",
+            "}",
+            "if {[llength $ila_hub_clk] > 0} {",
+            "    connect_debug_port -quiet dbg_hub/clk [lindex $ila_hub_clk 0]",
+            "}",
+            "implement_debug_core");
+
+    /**
+     * Writes the tcl sourced before placement when there is more than one ila, see ILA_HUB_TCL.
+     * @return The script.
+     */
+    private File writeIlaHubScript(){
+        File f = metadataFile(ILA_HUB_SCRIPT);
+        List<String> lines = new ArrayList<>();
+        lines.add("# Connects " + ila_shards.size() + " ilas to one debug hub. Written by ILADebug.");
+        lines.add(ILA_HUB_TCL);
+        FileTools.writeLinesToTextFile(lines, f.getAbsolutePath());
+        return f;
+    }
+
+    /**
+     * Checks that the debug hub ports (sl_iport0, sl_oport0) of every ila of d are connected, as hw_server
+     * can't reach an ila otherwise.
+     */
+    private void checkIlaHubPorts(Design d){
+        List<String> unconnected = ilasOffHub(d);
+        if(!unconnected.isEmpty())
+            errorAndExit("The debug hub isn't connected to " + String.join(", ", unconnected)
+                    + ", so hw_server couldn't reach them. See '" + new File(iii_dir, "vivado.log").getAbsolutePath()
+                    + "' and '" + metadataFile(ILA_HUB_SCRIPT).getAbsolutePath() + "'.\n");
+    }
+
+    /**
+     * @return The ilas of d whose debug hub ports aren't all connected.
+     */
+    private List<String> ilasOffHub(Design d){
+        HierNameIndex index = nameIndex(d);
+        List<String> unconnected = new ArrayList<>();
+        for(String ila : ilaInsts(d)){
+            EDIFCellInst inst = index.getCellInst(ila);
+            boolean in = false, out = false, open = false;
+            for(EDIFPortInst pi : inst.getPortInsts()){
+                String name = pi.getName();
+                boolean is_in = name.startsWith("sl_iport0"), is_out = name.startsWith("sl_oport0");
+                if(!is_in && !is_out)
+                    continue;
+                in |= is_in;
+                out |= is_out;
+                if(pi.getNet() == null || pi.getNet().getPortInsts().size() < 2)
+                    open = true;
             }
+            if(!in || !out || open)
+                unconnected.add(ila);
         }
-        if(positional_arg_counter < POSITIONAL_ARGS.length 
-                && POSITIONAL_ARGS[positional_arg_counter].required)
-            MessageGenerator.briefErrorAndExit("Not enough positional arguments.\n");
+        return unconnected;
     }
 
     /**
-     * Read a mapping file. Ignores blank lines and lines beginning with '#'.
-     * Strips whitespace from read strings.
-     * @param filename File to read from.
-     * @param separator String that separates key from value.
-     * @param warn Print a warning if overwriting the same key?
-     * @return The mappings read from the file.
+     * Chooses clock regions for the ila near the probed logic of the loaded (original) design and writes
+     * the tcl that constrains the ila to them.
+     * @return The script, or null if no suitable clock regions were found.
      */
-    public static Map<String, String> readMapFile(String filename, String separator, boolean warn){
-        Map<String, String> m = new TreeMap<>();
-        List<String> lines = FileTools.getLinesFromTextFile(filename);
-		for(String line : lines){
-            if(line.trim().startsWith("#"))
+    private File writeIlaPblockScript(){
+        List<String> lines = new ArrayList<>();
+        List<String> ranges = new ArrayList<>();
+        for(ProbeMap map : probeMaps()){
+            // with an ila per clock domain each ila gets its own pblock, though they don't account for each other
+            IlaPlacement pl = IlaPlacement.plan(design, nameIndex(design), map, default_net, probe_count, probe_depth);
+            String ila = (ila_shards == null) ? "The ila" : map.ila_inst;
+            if(pl == null){
+                MessageGenerator.briefMessage("None of the probed nets of " + ila.toLowerCase() + " is placed. "
+                        + ila + " is placed without guidance.");
                 continue;
-            if(line.trim().isEmpty())
+            }
+            pl.inst = map.ila_inst;
+            if(!map.ila_inst.equals(ProbeMap.ILA_INST))
+                pl.pblock = IlaPlacement.PBLOCK + map.ila_inst.substring(map.ila_inst.lastIndexOf('_'));
+            printIfVerbose("\n" + pl);
+            if(!pl.fits){
+                MessageGenerator.briefMessage("Not enough free block rams or slices for " + ila.toLowerCase()
+                        + " on this device. " + ila + " is placed without guidance.");
                 continue;
-            String[] parts = line.split(separator);                
-            String ret = m.put(parts[0].trim(), parts[1].trim());
-            if(warn && ret != null){
-                MessageGenerator.briefMessage("Warning: Duplicate key '" + parts[0].trim() + "'.");
-                MessageGenerator.briefMessage("Overwriting '" + ret + "' with '" + parts[1].trim() + "'.");
             }
+            lines.addAll(pl.tcl());
+            ranges.add(pl.range());
         }
-        return m;
+        if(lines.isEmpty())
+            return null;
+        File f = metadataFile("_ila_pblock.tcl");
+        FileTools.writeLinesToTextFile(lines, f.getAbsolutePath());
+        ila_pblock = String.join(",", ranges);
+        return f;
     }
-    
+
     /**
-     * Writes the probe map to a file. The probe map is pairs of probe nets and the nets
-     * in the design that they are connected to.
-     * @param filename File to write probemap to.
+     * Compares the average length of the probe routes of this run with earlier runs of the design whose ila
+     * placement was guided the other way.
      */
-    public void writeProbesFile(String filename){
-        List<String> p = new ArrayList<>();
-        p.add("# Probe mapping: <full probe net path> -> <full debug net path>");
-        p.add("# probe_count of design that wrote this = " + probe_count);
-
-        List<String> probe_list = StringTools.naturalSort(new ArrayList<>(probe_map.keySet()));
-        for (String probe : probe_list)
-            p.add(probe + " " + probe_map.get(probe));
-        
-        printIfVerbose("\nWriting output probes file to '" + filename + "'.");
-        FileTools.writeLinesToTextFile(p, filename);
+    private void reportIlaPlacement(){
+        if(probe_route_result == null || probe_route_result.tiles_n == 0 || manifest == null || iii_dir == null)
+            return;
+        String pblock = manifest.get("ila_pblock");
+        if(pblock == null)
+            return;
+        boolean guided = !pblock.equals("none");
+        List<Double> other = new ArrayList<>();
+        for(Map<String, Object> run : RunHistory.runs(iii_dir, no_ila_dcp_file.getName())){
+            Object p = run.get("ila_pblock");
+            if(p != null && p.equals("none") == guided && !Double.isNaN(RunHistory.number(run.get("probe_tiles"))))
+                other.add(RunHistory.number(run.get("probe_tiles")));
+        }
+        String s = String.format("Average probe route length %.1f tiles with the ila %s", probe_route_result.avgTiles(),
+                guided ? "in " + pblock : "placed without guidance");
+        if(!other.isEmpty())
+            s += String.format(", %.1f tiles (median of %d earlier runs) with it %s", RunHistory.median(other), other.size(),
+                    guided ? "placed without guidance" : "near the probed logic");
+        printIfVerbose(s + ".");
     }
 
     /**
-     * Writes probe_depth and clk_net to a file so that it knows what they were when it resumes from an
-     * intermediate design.
+     * Reports how the probe nets route went and how long the final stage took compared with
+     * earlier full routes of the same design in the run history.
      */
-    public void writeMetadata(){
-        if(no_ila_dcp_file == null)
+    private void reportProbeNetsRoute(){
+        File status = metadataFile(PROBE_NETS_STATUS);
+        if(!status.exists()){
+            MessageGenerator.briefMessage("Routing probe nets didn't finish. See '" + new File(iii_dir, "vivado.log").getAbsolutePath() + "'.");
             return;
-        
+        }
+        Map<String, String> map = readMapFile(status.getAbsolutePath(), "=", false);
+        double nets_s, full_s;
+        try {
+            nets_s = Long.parseLong(map.get("nets_ms")) / 1e3;
+            full_s = Long.parseLong(map.get("full_ms")) / 1e3;
+        } catch(NumberFormatException nfe){
+            MessageGenerator.briefMessage("Couldn't read routing status '" + status.getAbsolutePath() + "'.");
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Routed %s probe nets in %.1f s.", map.get("nets"), nets_s));
+        if(!"0".equals(map.get("unrouted"))){
+            sb.append(String.format(" %s nets were left unrouted so the whole design was routed (%.1f s).",
+                    map.get("unrouted"), full_s));
+            route_mode = "probe_nets+full";
+        }
+
+        String design_name = no_ila_dcp_file.getName();
+        List<Double> before = RunHistory.phaseHistory(iii_dir, design_name, "full", "route_write", "vivado_ns");
+        double now = phases.currentVivadoNanos() / 1e9;
+        if(before.isEmpty())
+            sb.append(" No earlier full route of this design in the run history to compare with.");
+        else {
+            double base = RunHistory.median(before);
+            sb.append(String.format(" Final stage took %.1f s in vivado, %.1f s %s than the median of %d earlier full route(s).",
+                    now, Math.abs(base - now), now <= base ? "less" : "more", before.size()));
+        }
+        MessageGenerator.briefMessage(sb.toString());
+    }
+
+    /**
+     * @return File in .iii named after the original design with the given suffix.
+     */
+    private File metadataFile(String suffix){
         String filename = no_ila_dcp_file.getName();
         if(filename.contains("_wrapper_"))
-            filename = filename.replaceFirst("_wrapper_[\\S|\\s]*", "_metadata.txt");
+            filename = filename.replaceFirst("_wrapper_[\\S|\\s]*", suffix);
         else
-            filename = filename.replaceFirst(".dcp", "_metadata.txt");
-        File f = new File(iii_dir, filename);
-        printIfVerbose("Writing metadata to '" + f.getAbsolutePath() + "'");
+            filename = filename.replaceFirst(".dcp", suffix);
+        return new File(iii_dir, filename);
+    }
 
-        List<String> lines = new ArrayList<>();
-        lines.add("# This is a metadata file.");
-        lines.add("# Mappings: <key> -> <value>");
-        
-        lines.add("probe_depth" + " = " + probe_depth);
-        lines.add("clk_net" + " = " + clk_net);
+    /**
+     * Writes the manifest of the intermediate design. It records the parameters used (so that it knows
+     * what they were when it resumes from an intermediate design) and content hashes of the original
+     * and intermediate checkpoints.
+     */
+    public void writeMetadata(){
+        if(no_ila_dcp_file == null)
+            return;
         
-        FileTools.writeLinesToTextFile(lines, f.getAbsolutePath());
+        File f = metadataFile("_manifest.txt");
+        printIfVerbose("Writing manifest to '" + f.getAbsolutePath() + "'");
+
+        IntermediateManifest m = new IntermediateManifest();
+        m.put("probe_count", probe_count);
+        m.put("probe_depth", probe_depth);
+        m.put("clk_net", clk_net);
+        // what loadDesign() needs to choose a checkpoint before loading one, see plannedProbeWidth()
+        m.put("probe_width", getIlaProbeWidth(design));
+        m.put("part", design.getPartName());
+        m.put("top_cell", design.getNetlist().getTopCell().getName());
+        if(input_debug_nets >= 0)
+            m.put("debug_nets", input_debug_nets);
+        m.put("ila_pblock", (ila_pblock == null) ? "none" : ila_pblock);
+        if(ila_shards != null)
+            m.put("ila_clocks", IlaShard.clocks(ila_shards));
+        try {
+            m.recordFile("input_dcp", no_ila_dcp_file);
+            m.recordFile("intermediate_dcp", no_probes_dcp_file);
+        } catch(IOException ioe){
+            printIfVerbose("Couldn't hash checkpoints for manifest (" + ioe.getMessage() + ").");
+            return;
+        }
+        m.write(f);
+        manifest = m;
+        meta_map = m.entries;
     }
 
     /**
-     * Reads probe_depth and clk_net from a file. Used when loading an intermediate design.
+     * Reads the manifest (or the metadata file of older versions) of the intermediate design.
+     * Used when loading an intermediate design.
      */
     public void readMetadata(){
         if(no_ila_dcp_file == null)
             return;
         
-        String filename = no_ila_dcp_file.getName();
-        if(filename.contains("_wrapper_"))
-            filename = filename.replaceFirst("_wrapper_[\\S|\\s]*", "_metadata.txt");
-        else
-            filename = filename.replaceFirst(".dcp", "_metadata.txt");
-        File f = new File(iii_dir, filename);
+        File f = metadataFile("_manifest.txt");
+        if(f.exists()){
+            printIfVerbose("Reading manifest from '" + f.getAbsolutePath() + "'");
+            manifest = IntermediateManifest.read(f);
+            meta_map = manifest.entries;
+            return;
+        }
 
+        f = metadataFile("_metadata.txt");
         if(!f.exists()){
             printIfVerbose("No metadata found at '" + f.getAbsolutePath() + "'");
             return;
@@ -641,6 +4302,39 @@ public class ILADebug {
         meta_map = readMapFile(f.getAbsolutePath(), "=", true);
     }
 
+    /**
+     * Decides whether the intermediate design was made from the current original design.
+     * Uses content hashes from the manifest. Falls back to comparing modification times if there is no manifest.
+     * @return True if the intermediate design can be reused.
+     */
+    private boolean intermediateUpToDate(){
+        if(manifest == null){
+            printIfVerbose("No manifest. Comparing modification times of original and intermediate designs.");
+            return !FileTools.isFileNewer(no_ila_dcp_file.getAbsolutePath(), no_probes_dcp_file.getAbsolutePath());
+        }
+        long start = System.nanoTime();
+        boolean up_to_date;
+        try {
+            up_to_date = manifest.matchesFile("input_dcp", no_ila_dcp_file);
+            if(!up_to_date)
+                printIfVerbose("Original design differs from the one the intermediate design was made from.");
+            else {
+                up_to_date = manifest.matchesFile("intermediate_dcp", no_probes_dcp_file);
+                if(!up_to_date)
+                    printIfVerbose("Intermediate design differs from the one recorded in the manifest.");
+            }
+        } catch(IOException ioe){
+            printIfVerbose("Couldn't hash checkpoints (" + ioe.getMessage() + ").");
+            return false;
+        }
+        printIfVerbose(String.format("Checked manifest in %.1f s (hashed %d bytes).",
+                (System.nanoTime() - start) / 1e9, manifest.hashed_bytes));
+        // keep file keys of files that were copied or restored so they aren't hashed next time
+        if(up_to_date && manifest.hashed_bytes > 0)
+            manifest.write(metadataFile("_manifest.txt"));
+        return up_to_date;
+    }
+
     /**
      * Load probe_depth from command line or metadata or default (in that order).
      * @return True if command line arg contradicted metadata. False otherwise.
@@ -744,12 +4438,14 @@ public class ILADebug {
         try {
             printIfVerbose("Loading design from '" + dcp_file + "'.");
             d = Design.readCheckpoint(dcp_file);
+            phases.read(new File(dcp_file));
         } catch(RuntimeException e){
             printIfVerbose("\nCouldn't open design at '" + dcp_file + "' due to encrypted edif.");
             printIfVerbose("Trying to generate unencrypted edif using vivado.\n");
             generateEdif(dcp_file);
             printIfVerbose("Trying to open design again.\n");
             d = Design.readCheckpoint(dcp_file);
+            phases.read(new File(dcp_file));
         }
         return d;
     }
@@ -757,72 +4453,33 @@ public class ILADebug {
     /**
      * Modify dcp/dsgn.edf because it won't open in Vivado without this change.
      * This change was determined expirementally and is not guaranteed to be the best way to solve this issue.
+     * The edif is patched while it is streamed between the zip files so it is never held in memory whole.
+     * All other entries are copied as raw compressed bytes (see DcpArchiveRewriter).
      * @param input_dcp Absolute path to dcp file containing edif file to be changed.
      * @param output_dcp Absolute path to write dcp file containing changed edif.
      * @return Completed successfully.
      */
     public boolean fixEdifInDCP(String input_dcp, String output_dcp){
-        ZipInputStream zis = null;
-        ZipOutputStream zos = null;
-        byte[] buffer = new byte[1024];
-        int len;
-
         printIfVerbose("\nStarting fix edif process.");
+        EdifViewrefPatcher patcher = new EdifViewrefPatcher();
+        DcpArchiveRewriter rewriter = new DcpArchiveRewriter();
+        rewriter.edit(".edf", (name, in, out) -> patcher.patch(in, out));
         try {
-            zis = new ZipInputStream(new FileInputStream(input_dcp));
-            zos = new ZipOutputStream(new FileOutputStream(output_dcp));
-
-            ZipEntry ze = null;
-            while((ze = zis.getNextEntry()) != null){
-                if(ze.getName().endsWith(".edf")){
-                    // fix edif and copy
-                    zos.putNextEntry(ze);
-                    StringBuffer sb = new StringBuffer();
-                    while ((len = zis.read(buffer)) > 0)
-                        sb.append(new String(buffer, 0, len));
-                    String edif_str = sb.toString();
-
-                    String bad_string = "(instance top (viewref design_1_wrapper (cellref design_1_wrapper (libraryref work)))";
-                    String good_string = "(instance top (viewref netlist (cellref design_1_wrapper (libraryref work)))";
-                    int index = edif_str.lastIndexOf(bad_string);
-                    byte[] buffer2;
-                    if(index >= 0){ // found bad_string
-                        printIfVerbose("Replacing bad_string.");
-                        String fixed_str = edif_str.substring(0, index) + good_string + edif_str.substring(index + bad_string.length());
-                        buffer2 = fixed_str.getBytes();
-                    }
-                    else {
-                        printIfVerbose("Warning: didn't find bad_string to replace. No change made to edif file.");
-                        printIfVerbose("bad_string = '" + bad_string + "'");
-                        buffer2 = edif_str.getBytes();
-                    }
-                    
-                    zos.write(buffer2, 0, buffer2.length);
-                    zos.closeEntry();
-                }
-                else {
-                    // copy
-                    zos.putNextEntry(ze);
-                    while ((len = zis.read(buffer)) > 0)
-                        zos.write(buffer, 0, len);
-                    zos.closeEntry();
-                }
-                zis.closeEntry();
-            }
-            zis.close();
-            zos.close();
-
-            printIfVerbose("Deleting old dcp file.\n");
-            FileTools.deleteFile(input_dcp);
-
+            rewriter.rewrite(new File(input_dcp), new File(output_dcp));
         } catch(IOException e) {
             e.printStackTrace();
-            if(zis != null)
-                try { zis.close(); } catch(IOException ioe){}
-            if(zos != null)
-                try { zos.close(); } catch(IOException ioe){}
             return false;
         }
+
+        if(patcher.replaced > 0)
+            printIfVerbose("Replaced viewref '" + patcher.wrapper_name + "' of instance top with 'netlist'.");
+        else
+            printIfVerbose("Warning: didn't find top instance viewref to replace. No change made to edif file.");
+        printIfVerbose("Copied " + rewriter.raw_entries + " entries (" + rewriter.raw_bytes
+                + " compressed bytes) without recompressing them.");
+
+        printIfVerbose("Deleting old dcp file.\n");
+        FileTools.deleteFile(input_dcp);
         return true;
     }
 
@@ -866,7 +4523,7 @@ public class ILADebug {
                 return f;
 
             if(error_if_not_found)
-                MessageGenerator.briefErrorAndExit("Could not access/find "
+                errorAndExit("Could not access/find "
                         + (dir ? "directory" : "file") + " '" + f.getPath() + "'.\n");
             
             printIfVerbose("Could not access/find "
@@ -895,7 +4552,7 @@ public class ILADebug {
             if(!f.isDirectory()){
                 printIfVerbose("Creating new directory '" + f.getAbsolutePath() + "'.");
                 if(!f.mkdirs())
-                    MessageGenerator.briefErrorAndExit("Failed to create directroy '"
+                    errorAndExit("Failed to create directroy '"
                             + f.getPath() + "'.\n");
             }
             return f;
@@ -913,6 +4570,30 @@ public class ILADebug {
         return f;
     }
 
+    /**
+     * @return Name (relative to pwd unless absolute) of the .iii directory created for -d filename, or for no -d
+     * if filename is null.
+     */
+    static String iiiCreateName(String filename){
+        if(filename == null)
+            return ".iii";
+        return filename.endsWith("/.iii") ? filename : filename + "/.iii";
+    }
+
+    /**
+     * @return The .iii directory setFiles() settles on for -d filename (null if not given) when run in pwd:
+     * filename if it's an existing directory, else the one named by iiiCreateName().
+     */
+    static File iiiDir(File pwd, String filename){
+        if(filename != null){
+            File f = (filename.startsWith("/") || filename.startsWith("~")) ? new File(filename) : new File(pwd, filename);
+            if(f.isDirectory())
+                return f;
+        }
+        String name = iiiCreateName(filename);
+        return (name.startsWith("/") || name.startsWith("~")) ? new File(name) : new File(pwd, name);
+    }
+
     /**
      * Takes filenames from HashMap and determines if input files exist.
      */
@@ -920,26 +4601,21 @@ public class ILADebug {
         // note doesn't end in '/'
         String pwd_str = System.getProperty("user.dir");
         if(pwd_str == null)
-           MessageGenerator.briefErrorAndExit("Could not access pwd.\n");
+           errorAndExit("Could not access pwd.\n");
         
         pwd_dir = new File(pwd_str);
         if(pwd_dir == null || !pwd_dir.isDirectory())
-            MessageGenerator.briefErrorAndExit("Could not access/find pwd '" 
+            errorAndExit("Could not access/find pwd '" 
                     + System.getProperty("user.dir") + "'.\n");
 
         ArrayList<String> files = arg_map.get("iii_dir");
         String filename = (files == null) ? null : files.get(0);
-        String create_dir = null;
-        if(files != null){
-            if(filename.endsWith("/.iii"))
-                create_dir = filename;
-            else
-                create_dir = filename + "/.iii";
-        }
-        else
-            create_dir = ".iii";
-        iii_dir = getDir(filename, true, false, create_dir, false);
+        iii_dir = getDir(filename, true, false, iiiCreateName(filename), false);
 
+        // shared cache of ila cores
+        files = arg_map.get("ila_cache");
+        if(files != null)
+            ila_cache = new IlaCoreCache(getDir(files.get(0), true, false, files.get(0), false));
 
         // input files
         
@@ -1006,7 +4682,7 @@ public class ILADebug {
 
         if(no_ila_dcp_file == null){
             if(no_probes_dcp_file == null)
-                MessageGenerator.briefErrorAndExit("Couldn't find any valid starting dcp file.\n");
+                errorAndExit("Couldn't find any valid starting dcp file.\n");
 
             ArrayList<String> files = arg_map.get("input_dcp");
             if(files == null)
@@ -1018,14 +4694,17 @@ public class ILADebug {
             
             // if user requested refresh, must use no_ila
             if(arg_map.containsKey("refresh")){
-                MessageGenerator.briefErrorAndExit("Canceling operation. Refresh requested,"
+                errorAndExit("Canceling operation. Refresh requested,"
                         + " but can't find input_dcp.\n");
             }
             else if(differs_from_metadata){
-                MessageGenerator.briefErrorAndExit("Canceling operation. Requested args differ from metadata,"
+                errorAndExit("Canceling operation. Requested args differ from metadata,"
                         + " but can't find input_dcp.\n");
             }
             printIfVerbose("\nCouldn't find original design. Found intermediate design.");
+            if(!intermediateIlaUsable())
+                errorAndExit("Canceling operation. The ila of the intermediate design doesn't suit this run,"
+                        + " but can't find input_dcp.\n");
             design = safeReadCheckpoint(no_probes_dcp_file);
             return 1;
         }
@@ -1038,27 +4717,141 @@ public class ILADebug {
                 return 0;
             }
             else { // both exist
-                if(arg_map.containsKey("refresh") || differs_from_metadata
-                        || FileTools.isFileNewer(no_ila_dcp_file.getAbsolutePath(), 
-                                                    no_probes_dcp_file.getAbsolutePath())){
-                    // no_ila is newer than no_probes or refresh requested
+                if(arg_map.containsKey("refresh") || differs_from_metadata || !intermediateUpToDate()){
+                    // no_probes wasn't made from no_ila or refresh requested
                     if(arg_map.containsKey("refresh"))
                         printIfVerbose("\nRefresh requested.");
                     else if(differs_from_metadata)
                         printIfVerbose("\nMetadata changed.");
                     else
-                        printIfVerbose("\nOriginal design is newer than intermediate design.");
+                        printIfVerbose("\nIntermediate design is out of date.");
                     
                     design = safeReadCheckpoint(no_ila_dcp_file);
                     return 0;
                 }
                 printIfVerbose("\nFound intermediate design.");
+                if(!intermediateIlaUsable()){
+                    printIfVerbose("Must add the ila to input dcp again.");
+                    design = safeReadCheckpoint(no_ila_dcp_file);
+                    return 0;
+                }
+                if(ecoBaseUsable()){
+                    printIfVerbose("ECO: starting from previous output '" + output_dcp_file.getAbsolutePath() + "'.");
+                    design = safeReadCheckpoint(output_dcp_file);
+                    eco_base = true;
+                    return 1;
+                }
                 design = safeReadCheckpoint(no_probes_dcp_file);
                 return 1;
             }
         }
     }
 
+    /**
+     * Decides from the manifest whether the ilas of the intermediate design suit this run, before any
+     * checkpoint is loaded, so that loadProbes() doesn't have to throw the intermediate design away and load
+     * the original one. They don't if they were made with an ila per clock domain (ila_clocks) and this run
+     * isn't, or the other way round, or if the ila has too few probe wires. Manifests without probe_width
+     * predate it; their probe_count is the width the ila was made with.
+     * @return False only if the intermediate design is known not to suit this run.
+     */
+    private boolean intermediateIlaUsable(){
+        if(manifest == null)
+            return true;
+        boolean per_clock = manifest.get("ila_clocks") != null;
+        if(per_clock != arg_map.containsKey("ila_per_clock")){
+            printIfVerbose("The intermediate design was made " + (per_clock ? "with" : "without")
+                    + " an ila per clock domain.");
+            return false;
+        }
+        int width = manifest.getInt("probe_width", manifest.getInt("probe_count", -1));
+        long start = System.nanoTime();
+        int needed = plannedProbeWidth();
+        if(width < 0 || needed < 0){
+            printIfVerbose("Can't tell the probe wires needed before loading a design.");
+            return true;
+        }
+        printIfVerbose(String.format("Planned load in %.2f s: %d probe wires needed, the ila of the intermediate "
+                + "design (part %s, top cell %s) has %d.", (System.nanoTime() - start) / 1e9, needed,
+                manifest.get("part"), manifest.get("top_cell"), width));
+        return width >= needed;
+    }
+
+    /**
+     * Same width loadProbes() settles on, found without a loaded design: from the probes file, or the number of
+     * nets marked for debug in the probes dcp or input dcp (see MarkDebugScanner), and probe_count if given.
+     * @return The width, or -1 if it can't be known before loading (ila per clock domain, a scan that gave up).
+     */
+    private int plannedProbeWidth(){
+        // the ilas of a design with an ila per clock depend on the clocks, which need the netlist
+        if(arg_map.containsKey("ila_per_clock"))
+            return -1;
+        int width;
+        if(input_probes_file != null && !input_probes_file.getName().endsWith(".dcp"))
+            width = probesFileWidth(input_probes_file);
+        else if(input_probes_file == null && manifest.getInt("debug_nets", -1) >= 0){
+            // the input dcp is unchanged since the intermediate design was made from it
+            width = Math.min(manifest.getInt("debug_nets", -1), MAX_PROBE_COUNT);
+        }
+        else {
+            // without a probes file the probes are the nets marked for debug in the loaded (intermediate) design
+            File f = (input_probes_file == null) ? no_probes_dcp_file : input_probes_file.getAbsoluteFile();
+            List<String> nets = scannedDebugNets(f);
+            if(nets == null)
+                return -1;
+            width = Math.min(nets.size(), MAX_PROBE_COUNT);
+        }
+        if(width < 0)
+            return -1;
+        int np = getIntArg("probe_count", -1);
+        return (np > width && np <= MAX_PROBE_COUNT) ? np : width;
+    }
+
+    /**
+     * @return The nets marked for debug in dcp found by a scan (the one of input_probes_file if it's dcp), or
+     * null if the scan gave up.
+     */
+    private List<String> scannedDebugNets(File dcp){
+        try {
+            if(debug_net_scan != null && dcp.equals(input_probes_file.getAbsoluteFile()))
+                return debug_net_scan.get();
+            MarkDebugScanner scanner = new MarkDebugScanner();
+            List<String> nets = scanner.scan(dcp);
+            printIfVerbose(scanner.toString());
+            return nets;
+        } catch(IOException | InterruptedException | ExecutionException e){
+            printIfVerbose("Scan of '" + dcp.getName() + "' for nets marked for debug failed (" + e + ").");
+            return null;
+        }
+    }
+
+    /**
+     * @return Probe wires readProbesFile() will fill from f (named probes keep their index, others go to the
+     * first free wires), or -1 if f can't be read. Malformed lines and out of range indices are left for
+     * readProbesFile() to report.
+     */
+    private static int probesFileWidth(File f){
+        BitSet named = new BitSet();
+        int unnamed = 0;
+        try(BufferedReader br = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)){
+            String line;
+            while((line = br.readLine()) != null){
+                int probe_start = skipSpace(line, 0);
+                if(probe_start == line.length() || line.charAt(probe_start) == '#')
+                    continue;
+                int probe_end = skipToSpace(line, probe_start);
+                int p_num = ProbeMap.probeIndex(line.substring(probe_start, probe_end));
+                if(p_num < 0)
+                    unnamed++;
+                else if(p_num < MAX_PROBE_COUNT)
+                    named.set(p_num);
+            }
+        } catch(IOException ioe){
+            return -1;
+        }
+        return Math.max(named.length(), Math.min(named.cardinality() + unnamed, MAX_PROBE_COUNT));
+    }
+
     /**
      * Ensure that if the user has not specified to force overwrite, output files for
      * dcp, probes and ltx don't collide with already existing files.
@@ -1066,7 +4859,8 @@ public class ILADebug {
     private void checkForFileCollisions(){
         // if not force overwrite check if any files will collide warn against and exit.
         // after this, no checks are made for overwriting files
-        if(!force()){
+        // an eco updates the outputs of the previous run in place
+        if(!force() && !arg_map.containsKey("eco")){
             // intermediate can always be overwritten without force
             boolean any_err = false;
             // check output_dcp, output_ltx, output_probes
@@ -1096,16 +4890,47 @@ public class ILADebug {
             }
             // if any would overwrite, exit
             if(any_err)
-                MessageGenerator.briefErrorAndExit("Use force (-f) to overwrite.\nCanceling operation.\n");
+                errorAndExit("Use force (-f) to overwrite.\nCanceling operation.\n");
         }
     }
 
+    /**
+     * @return The name index of d. The index of the loaded design is kept until another design is loaded.
+     */
+    private HierNameIndex nameIndex(Design d){
+        if(d != design)
+            return new HierNameIndex(d);
+        if(name_index == null || name_index.design != design)
+            name_index = new HierNameIndex(design);
+        return name_index;
+    }
+
+    /**
+     * @return True if net is one of the tie off values that a probe can be mapped to instead of a net.
+     */
+    static boolean isTieOff(String net){
+        return TIE_GND.equals(net) || TIE_VCC.equals(net);
+    }
+
     /**
      * This function searches the top level user design for a reset (or rst) net if it can find one.
      * This net will be used to connect unused probe wires since unconnected probe wires cause errors.
+     * If tie off was requested, unused probe wires are tied to GND or VCC instead and no net is searched for.
      * @param input_probes A collection of probe strings to use to find the name of the top instance of the user design.
      */
     private void setDefaultNet(Collection<String> input_probes){
+        if(arg_map.containsKey("tie_off")){
+            String level = arg_map.get("tie_off").get(0);
+            if(level.equalsIgnoreCase("gnd"))
+                default_net = TIE_GND;
+            else if(level.equalsIgnoreCase("vcc"))
+                default_net = TIE_VCC;
+            else
+                errorAndExit("Tie off must be 'gnd' or 'vcc', not '" + level + "'.\n");
+            printIfVerbose("\nTying unused probe wires to " + level.toUpperCase() + ".");
+            return;
+        }
+
         List<EDIFNet> reset_nets = new ArrayList<>();
         List<EDIFNet> rst_nets = new ArrayList<>();
         List<EDIFNet> other_nets = new ArrayList<>();
@@ -1114,6 +4939,7 @@ public class ILADebug {
 
         // Try to find a reset net to connect to the unconnected pins
         try {
+            HierNameIndex index = nameIndex(design);
             for(String hier_name : input_probes){
                 try {
                     String[] path = hier_name.split("/");
@@ -1140,19 +4966,19 @@ public class ILADebug {
 
             for(EDIFNet n : reset_nets){
                 default_net = dsgn_inst + "/" + n.getName();
-                if(EDIFTools.getNet(design.getNetlist(), default_net) != null)
+                if(index.getNet(default_net) != null)
                     return;
             }
             for(EDIFNet n : rst_nets){
                 default_net = dsgn_inst + "/" + n.getName();
-                if(EDIFTools.getNet(design.getNetlist(), default_net) != null)
+                if(index.getNet(default_net) != null)
                     return;
             }
             printIfVerbose("\nNo nets found in top module containing 'reset' or 'rst'.");
             printIfVerbose("Selecting net to connect unused probes to at random.");
             for(EDIFNet n : other_nets){
                 default_net = dsgn_inst + "/" + n.getName();
-                if(EDIFTools.getNet(design.getNetlist(), default_net) != null)
+                if(index.getNet(default_net) != null)
                     return;
             }
             printIfVerbose("\nFailed to find a net to which to connect unused probes.");
@@ -1168,48 +4994,108 @@ public class ILADebug {
      * numbering 0 to probe_map.size()-1.
      */
     public void getProbesFromFile(){
-        printIfVerbose("\nLoading probes from probes file '" + input_probes_file.getAbsolutePath() + "'.");
-        Map<String, String> input_probes = readMapFile(input_probes_file.getAbsolutePath(), " ", true);
-        String[] probe_str = {"top/u_ila_0/probe0[", "]"};
-        LinkedList<String> bad_probe = new LinkedList<>();
-        TreeSet<Integer> probe_nums = new TreeSet<>();
-        probe_map = new TreeMap<>(naturalComparator);
+        probe_map = readProbesFile(input_probes_file, true);
+    }
 
-        // set default net
-        setDefaultNet(input_probes.values());
+    /**
+     * Read a probes file into a probe map that covers probes numbering 0 to size()-1.
+     * The file is streamed line by line. Lines that don't name a probe wire of the ila have their net
+     * connected to the first unused probe wires, in file order.
+     * @param f Probes file.
+     * @param set_default_net Choose default_net using the nets in this file. Else the current default_net is used.
+     * @return The probe map.
+     */
+    public ProbeMap readProbesFile(File f, boolean set_default_net){
+        printIfVerbose("\nLoading probes from probes file '" + f.getAbsolutePath() + "'.");
+        ProbeMap probe_map = new ProbeMap();
+        List<String> bad_probe = new ArrayList<>();
 
-        // add probe->net pairs that are valid (conform to probe_str) to probe_map and the probe index to probe_nums
-        // if probe is invalid, add net to bad_probes
-        int p_num = -1;
-        for(Entry<String, String> p : input_probes.entrySet()){
-            if(p.getKey().startsWith(probe_str[0]) && p.getKey().endsWith(probe_str[1])){
-                try {
-                    p_num = Integer.parseInt(p.getKey().substring(probe_str[0].length(), 
-                                    p.getKey().length() - probe_str[1].length()));
-                    probe_nums.add(p_num);
-                    probe_map.put(p.getKey(), p.getValue());
-                } catch(NumberFormatException nfe){
-                    bad_probe.add(p.getValue());
+        // add probe->net pairs that are valid (name a probe wire) to probe_map
+        // if probe is invalid, add net to bad_probe
+        int line_no = 0;
+        try(BufferedReader br = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)){
+            String line;
+            while((line = br.readLine()) != null){
+                line_no++;
+                int probe_start = skipSpace(line, 0);
+                if(probe_start == line.length() || line.charAt(probe_start) == '#')
+                    continue;
+                int probe_end = skipToSpace(line, probe_start);
+                int net_start = skipSpace(line, probe_end);
+                if(net_start == line.length() || line.charAt(net_start) == '#'){
+                    errorAndExit("Line " + line_no + " of probes file '" + f.getAbsolutePath()
+                            + "' isn't '<probe> <net>': '" + line.trim() + "'.\n");
+                    continue;
+                }
+                String probe = line.substring(probe_start, probe_end);
+                String net = line.substring(net_start, skipToSpace(line, net_start));
+
+                int p_num = ProbeMap.probeIndex(probe);
+                if(p_num < 0){
+                    printIfVerbose("Line " + line_no + ": '" + probe + "' isn't a probe wire of the ila. "
+                            + "Connecting '" + net + "' to an unused probe wire.");
+                    bad_probe.add(net);
+                    continue;
+                }
+                if(p_num >= MAX_PROBE_COUNT){
+                    errorAndExit("Line " + line_no + " of probes file '" + f.getAbsolutePath() + "': probe '" + probe
+                            + "' is out of range.\nMaximum index of a probe is " + (MAX_PROBE_COUNT-1) + " .\n");
+                    continue;
+                }
+                String ret = probe_map.put(p_num, net);
+                if(ret != null){
+                    MessageGenerator.briefMessage("Warning: Duplicate probe '" + probe + "' on line " + line_no + ".");
+                    MessageGenerator.briefMessage("Overwriting '" + ret + "' with '" + net + "'.");
                 }
             }
-            else
-                bad_probe.add(p.getValue());
+        } catch(IOException ioe){
+            errorAndExit("Couldn't read probes file '" + f.getAbsolutePath() + "' (" + ioe.getMessage() + ").\n");
+        }
+
+        // set default net
+        if(set_default_net){
+            List<String> nets = probe_map.nets();
+            nets.addAll(bad_probe);
+            setDefaultNet(nets);
         }
-        /* for(contiguous i = 0 to end)
+
+        /* for(contiguous unused i = 0 to end)
          *   continue if:
          *      there are more nets in bad_probe (as long as i does not exceed MAX_PROBE_COUNT)
          *      or there is a good probe with a higher index than i
          */
-        for(int i = 0 ; i < probe_nums.last() || (!bad_probe.isEmpty() && i < MAX_PROBE_COUNT) ; i++){
-            if(probe_nums.contains(i))
-                continue;
-            if(!bad_probe.isEmpty()){
-                String s = bad_probe.pollFirst();
-                probe_map.put(probe_str[0] + i + probe_str[1], s);
-            }
+        int next_bad = 0;
+        for(int i = probe_map.nextFree(0) ; i < probe_map.length()
+                || (next_bad < bad_probe.size() && i < MAX_PROBE_COUNT) ; i = probe_map.nextFree(i + 1)){
+            if(next_bad < bad_probe.size())
+                probe_map.put(i, bad_probe.get(next_bad++));
             else
-                probe_map.put(probe_str[0] + i + probe_str[1], default_net);
+                probe_map.put(i, default_net);
         }
+
+        // check that the nets exist in the loaded design
+        if(design != null){
+            HierNameIndex index = nameIndex(design);
+            List<String> missing = new ArrayList<>();
+            for(String net : probe_map.nets())
+                if(net != null && !isTieOff(net) && index.getNet(net) == null)
+                    missing.add(net);
+            if(!missing.isEmpty())
+                MessageGenerator.briefMessage("\nWarning: " + missing.size() + " net(s) in probes file '"
+                        + f.getName() + "' not found in design: " + missing);
+        }
+        return probe_map;
+    }
+
+    private static int skipSpace(String line, int i){
+        while(i < line.length() && Character.isWhitespace(line.charAt(i)))
+            i++;
+        return i;
+    }
+    private static int skipToSpace(String line, int i){
+        while(i < line.length() && !Character.isWhitespace(line.charAt(i)))
+            i++;
+        return i;
     }
 
     /**
@@ -1217,9 +5103,10 @@ public class ILADebug {
      * @param p_count Number of probes desired.
      */
     private void padProbeMap(int p_count){
-        String[] probe_str = {"top/u_ila_0/probe0[", "]"};
-        for(int i = probe_map.size() ; i < p_count ; i++)
-            probe_map.put(probe_str[0] + i + probe_str[1], default_net);
+        padProbeMap(probe_map, p_count);
+    }
+    private void padProbeMap(ProbeMap probe_map, int p_count){
+        probe_map.pad(p_count, default_net);
     }
 
     private void getProbesFromDCP(String dcp_file, boolean use_design){
@@ -1229,20 +5116,60 @@ public class ILADebug {
         if(use_design){
             debug_nets = ILAInserter.getNetsMarkedForDebug(design);
         }
-        else {
-            Design d = safeReadCheckpoint(dcp_file);
-            debug_nets = ILAInserter.getNetsMarkedForDebug(d);
-        }
+        else
+            debug_nets = netsMarkedForDebug(new File(dcp_file));
         setDefaultNet(debug_nets);
-        probe_map = new HashMap<>();
+        if(input_probes_file == null && no_ila_dcp_file != null
+                && new File(dcp_file).getAbsoluteFile().equals(no_ila_dcp_file.getAbsoluteFile()))
+            input_debug_nets = debug_nets.size();
+        probe_map = new ProbeMap();
         
-        String[] probe_str = {"top/u_ila_0/probe0[", "]"};
         for(int i = 0 ; i < debug_nets.size() && i < MAX_PROBE_COUNT; i++)
-           probe_map.put(probe_str[0] + i + probe_str[1], debug_nets.get(i));
+           probe_map.put(i, debug_nets.get(i));
         
         if(debug_nets.size() > MAX_PROBE_COUNT)
         MessageGenerator.briefMessage("\nMore than " + MAX_PROBE_COUNT + " nets marked for debug. \n"
-                + "Truncating list of debug nets.");
+                + "Truncating list of debug nets. Use --ila_per_clock to probe all of them with more ilas.");
+    }
+
+    /**
+     * If the probes are to come from the nets marked for debug in a dcp, starts scanning it for them (see
+     * MarkDebugScanner) on another thread, so the scan overlaps loading the design. Whether the loaded design
+     * is that dcp is only known after loading, so the scan is cancelled if it turns out not to be needed.
+     */
+    private void startDebugNetScan(){
+        if(input_probes_file == null || !input_probes_file.getName().endsWith(".dcp") || !input_probes_file.exists())
+            return;
+        File f = input_probes_file.getAbsoluteFile();
+        debug_net_scanner = new MarkDebugScanner();
+        ExecutorService pool = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        debug_net_scan = pool.submit(() -> debug_net_scanner.scan(f));
+        pool.shutdown();
+    }
+
+    /**
+     * @return Nets marked for debug in dcp, from the scan if it could find them, else by loading dcp.
+     */
+    private List<String> netsMarkedForDebug(File dcp){
+        if(debug_net_scan != null && dcp.getAbsoluteFile().equals(input_probes_file.getAbsoluteFile())){
+            try {
+                List<String> nets = debug_net_scan.get();
+                printIfVerbose(debug_net_scanner.toString());
+                if(nets != null){
+                    printIfVerbose("Found " + nets.size() + " nets marked for debug without loading '" + dcp.getName() + "'.");
+                    return nets;
+                }
+                printIfVerbose("Couldn't find nets marked for debug without loading '" + dcp.getName() + "': "
+                        + debug_net_scanner.reason + ".");
+            } catch(InterruptedException | ExecutionException e){
+                printIfVerbose("Scan of '" + dcp.getName() + "' for nets marked for debug failed (" + e.getCause() + ").");
+            }
+        }
+        return ILAInserter.getNetsMarkedForDebug(safeReadCheckpoint(dcp));
     }
 
     /**
@@ -1250,6 +5177,8 @@ public class ILADebug {
      * Also sets the probe count from command line if given, else sets it same as size of probe map.
      */
     private int loadProbes(int step){
+        if(arg_map.containsKey("ila_per_clock"))
+            return loadShards(step);
         String probe_file = (input_probes_file == null) ? null : input_probes_file.getAbsolutePath();
         
         // if given probe file, load from it
@@ -1270,17 +5199,17 @@ public class ILADebug {
                     else
                         sb.append("????");
                     sb.append("'.\nExiting.");
-                    MessageGenerator.briefErrorAndExit(sb.toString());
+                    errorAndExit(sb.toString());
                 }
             }
             else {
                 getProbesFromFile();
 
                 if(probe_map == null || probe_map.size() < 1)
-                    MessageGenerator.briefErrorAndExit("No probes found in probe file '"
+                    errorAndExit("No probes found in probe file '"
                             + input_probes_file.getAbsolutePath() + "'.\nExiting.");
                 else if(probe_map.size() > MAX_PROBE_COUNT)
-                    MessageGenerator.briefErrorAndExit("Too many probes (or too high index probes) "
+                    errorAndExit("Too many probes (or too high index probes) "
                             + "found in probe file '" + input_probes_file.getAbsolutePath()
                             + "'.\nMaximum index of a probe is " + (MAX_PROBE_COUNT-1) + " .\nExiting.");
             }
@@ -1304,7 +5233,7 @@ public class ILADebug {
                 else
                     sb.append("????");
                 sb.append("'.\nExiting.");
-                MessageGenerator.briefErrorAndExit(sb.toString());
+                errorAndExit(sb.toString());
             }
         }
 
@@ -1340,31 +5269,272 @@ public class ILADebug {
             return 0;
 
         // check if intermediate soln has enough probe wires
-        int p_count = -1;
+        int p_count = getIlaProbeWidth(design);
+        if(p_count == -1)
+            printIfVerbose("Couldn't find width of probes bus in ila. The intermediate design being "
+                    + "used might not be usable by this application.");
+        else
+            printIfVerbose("Width of probes bus in ila of intermediate design is " + p_count + ".");
+
+        if(p_count < probe_count){
+            printIfVerbose("Not enough wires. Must add an ila with more wires to input dcp.");
+
+            design = safeReadCheckpoint(no_ila_dcp_file);
+            return 0;
+        }
+        else if(meta_map != null && meta_map.containsKey("ila_clocks")){
+            printIfVerbose("Intermediate design has an ila per clock domain. Must add a single ila to input dcp.");
+
+            design = safeReadCheckpoint(no_ila_dcp_file);
+            return 0;
+        }
+        else
+            padProbeMap(p_count);
+        return step;
+    }
+
+    /**
+     * Same as loadProbes(), for an ila per clock domain. All probed nets (from input_probes_file or nets marked
+     * for debug, without the limit of MAX_PROBE_COUNT) are split into ila_shards. Each ila gets as many probe
+     * wires as the largest shard, so all of them are instances of one ila core. Unused wires of the first ila
+     * go to default_net as usual; those of the others are tied to GND, as default_net is usually on another
+     * clock. An intermediate design is reused only if it was made for the same clocks and is wide enough.
+     */
+    private int loadShards(int step){
+        if(arg_map.containsKey("sweep") || arg_map.containsKey("eco"))
+            errorAndExit("--ila_per_clock can't be used with --sweep or --eco.\n");
+
+        List<String> nets;
+        String source;
+        if(input_probes_file != null && !input_probes_file.getName().endsWith(".dcp")){
+            source = input_probes_file.getAbsolutePath();
+            nets = readProbeNets(input_probes_file);
+        }
+        else {
+            File f = (input_probes_file == null) ? null : getExistingFile(input_probes_file.getAbsolutePath(), true);
+            boolean use_design = (f == null) || (step == 0) && f.equals(no_ila_dcp_file)
+                || (step == 1) && f.equals(no_probes_dcp_file);
+            source = (f != null) ? f.getAbsolutePath() : (step == 0 ? no_ila_dcp_file : no_probes_dcp_file).getAbsolutePath();
+            printIfVerbose("\nLoading probes from nets marked for debug in '" + source + "'.");
+            nets = use_design ? ILAInserter.getNetsMarkedForDebug(design) : netsMarkedForDebug(f);
+        }
+        if(nets.isEmpty())
+            errorAndExit("No probes found in '" + source + "'.\nExiting.");
+        setDefaultNet(nets);
+
+        long start = System.nanoTime();
+        ila_shards = IlaShard.plan(design, nameIndex(design), nets, clk_net);
+        probe_count = 0;
+        for(IlaShard s : ila_shards)
+            probe_count = Math.max(probe_count, s.probe_map.size());
+        int np = getIntArg("probe_count", probe_count);
+        if(np > probe_count && np <= MAX_PROBE_COUNT)
+            probe_count = np;
+        probe_map = ila_shards.get(0).probe_map;
+        printIfVerbose(String.format("\nSplit %d probes into %d ilas by clock domain in %.2f s. Probe count of each is %d.",
+                nets.size(), ila_shards.size(), (System.nanoTime() - start) / 1e9, probe_count));
+        for(IlaShard s : ila_shards)
+            printIfVerbose("  " + s);
+
+        int width = probe_count;
+        if(step == 1){
+            width = getIlaProbeWidth(design);
+            String clocks = IlaShard.clocks(ila_shards);
+            String made_for = (meta_map == null) ? null : meta_map.get("ila_clocks");
+            if(width < probe_count || !clocks.equals(made_for) || ilaInsts(design).size() != ila_shards.size()
+                    || !ilasOffHub(design).isEmpty()){
+                printIfVerbose("Intermediate design doesn't have an ila of " + probe_count + " probe wires on each of "
+                        + "clocks " + clocks + ". Must add ilas to input dcp.");
+                design = safeReadCheckpoint(no_ila_dcp_file);
+                step = 0;
+                width = probe_count;
+            }
+        }
+        for(IlaShard s : ila_shards)
+            s.probe_map.pad(width, (s.probe_map == probe_map) ? default_net : TIE_GND);
+        return step;
+    }
+
+    /**
+     * @return Nets of a probes file in file order, whichever ila (if any) each line names. Tie offs and
+     * repeats (such as padding in an output probes file) are skipped.
+     */
+    private List<String> readProbeNets(File f){
+        printIfVerbose("\nLoading probes from probes file '" + f.getAbsolutePath() + "'.");
+        Set<String> nets = new LinkedHashSet<>();
+        int line_no = 0;
+        try(BufferedReader br = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)){
+            String line;
+            while((line = br.readLine()) != null){
+                line_no++;
+                int probe_start = skipSpace(line, 0);
+                if(probe_start == line.length() || line.charAt(probe_start) == '#')
+                    continue;
+                int net_start = skipSpace(line, skipToSpace(line, probe_start));
+                if(net_start == line.length() || line.charAt(net_start) == '#')
+                    errorAndExit("Line " + line_no + " of probes file '" + f.getAbsolutePath()
+                            + "' isn't '<probe> <net>': '" + line.trim() + "'.\n");
+                String net = line.substring(net_start, skipToSpace(line, net_start));
+                if(!isTieOff(net))
+                    nets.add(net);
+            }
+        } catch(IOException ioe){
+            errorAndExit("Couldn't read probes file '" + f.getAbsolutePath() + "' (" + ioe.getMessage() + ").\n");
+        }
+        return new ArrayList<>(nets);
+    }
+
+    /**
+     * @return Probe maps of all ilas of the design, the first being probe_map.
+     */
+    private List<ProbeMap> probeMaps(){
+        if(ila_shards == null)
+            return Collections.singletonList(probe_map);
+        List<ProbeMap> maps = new ArrayList<>();
+        for(IlaShard s : ila_shards)
+            maps.add(s.probe_map);
+        return maps;
+    }
+
+    /**
+     * @return Width of the probes bus of the ila in an intermediate design, or -1 if it can't be found.
+     */
+    private static int getIlaProbeWidth(Design d){
         try {
-            Collection<EDIFPort> ports = design.getNetlist().getTopCell().getCellInst("top").getCellPorts();
+            Collection<EDIFPort> ports = d.getNetlist().getTopCell().getCellInst("top").getCellPorts();
             for(EDIFPort p : ports)
                 if(p.toString().startsWith("probes"))
-                    p_count = p.getWidth();
-            
-            if(p_count == -1)
-                throw new NullPointerException();
+                    return p.getWidth();
+        } catch(NullPointerException npe){}
+        return -1;
+    }
 
-            printIfVerbose("Width of probes bus in ila of intermediate design is " + p_count + ".");
-        } catch(NullPointerException npe){
-            printIfVerbose("Couldn't find width of probes bus in ila. The intermediate design being "
-                    + "used might not be usable by this application.");
+    /**
+     * @return Hierarchical names of the ilas (top/u_ila_k) of an intermediate design, in order of k.
+     */
+    private static List<String> ilaInsts(Design d){
+        List<String> insts = new ArrayList<>();
+        try {
+            for(EDIFCellInst i : d.getNetlist().getTopCell().getCellInst(ProbeMap.ILA_PARENT).getCellType().getCellInsts())
+                if(i.getName().matches("u_ila_\\d+"))
+                    insts.add(ProbeMap.ILA_PARENT + EDIFTools.EDIF_HIER_SEP + i.getName());
+        } catch(NullPointerException npe){}
+        return StringTools.naturalSort(insts);
+    }
+
+    /**
+     * Reads an integer argument from the command line.
+     * @return The value or default_value if it wasn't given or couldn't be parsed.
+     */
+    private int getIntArg(String key, int default_value){
+        List<String> list = arg_map.get(key);
+        if(list == null)
+            return default_value;
+        try {
+            return Integer.parseInt(list.get(0));
+        } catch(NumberFormatException nfe){
+            printIfVerbose("Couldn't parse '" + list.get(0) + "' as an integer " + key + ".");
+            return default_value;
         }
+    }
 
-        if(p_count < probe_count){
-            printIfVerbose("Not enough wires. Must add an ila with more wires to input dcp.");
+    /**
+     * Evaluates each of the probes files given to sweep against the intermediate design, on up to 'jobs'
+     * threads. The first candidate that needs no more probe wires than the ila has is connected and routed on
+     * the loaded design, so design is changed. Each of the others gets its own copy of the intermediate design
+     * (read from no_probes_dcp_file, as RapidWright designs can't be copied in memory).
+     * @return True if the best candidate should be continued to full outputs. design, probe_map and
+     * probe_route_result are then set to those of the best candidate.
+     */
+    private boolean sweepProbes(){
+        int width = getIlaProbeWidth(design);
+        int threads = Math.max(1, getIntArg("jobs", 1));
+        boolean keep_best = arg_map.containsKey("sweep_best");
 
-            design = safeReadCheckpoint(no_ila_dcp_file);
-            return 0;
+        List<SweepCandidate> candidates = new ArrayList<>();
+        for(String name : arg_map.get("sweep").get(0).split(",")){
+            SweepCandidate c = new SweepCandidate();
+            c.file = getExistingFile(name, true);
+            c.probe_map = readProbesFile(c.file, default_net == null);
+            if(c.probe_map.size() > width)
+                c.error = "needs " + c.probe_map.size() + " probe wires, ila has " + width;
+            else
+                padProbeMap(c.probe_map, width);
+            candidates.add(c);
+        }
+
+        printIfVerbose("\nSweeping " + candidates.size() + " probes files on " + threads + " thread(s).");
+        long start = System.nanoTime();
+        SweepCandidate[] best = new SweepCandidate[1];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        // the first candidate is routed on the design already loaded, the others each read their own copy
+        Design loaded = design;
+        for(SweepCandidate c : candidates){
+            if(c.error != null)
+                continue;
+            Design reuse = futures.isEmpty() ? loaded : null;
+            futures.add(pool.submit(() -> {
+                try {
+                    Design d = (reuse != null) ? reuse : Design.readCheckpoint(no_probes_dcp_file.getAbsolutePath());
+                    c.result = my_updateProbeConnections(d, c.probe_map);
+                    printIfVerbose("'" + c.file.getName() + "': " + c.result);
+                    synchronized(best){
+                        if(best[0] == null || c.betterThan(best[0])){
+                            if(best[0] != null)
+                                best[0].design = null;
+                            best[0] = c;
+                            if(keep_best)
+                                c.design = d;
+                        }
+                    }
+                } catch(RuntimeException e){
+                    c.error = e.toString();
+                }
+            }));
+        }
+        for(Future<?> f : futures){
+            try {
+                f.get();
+            } catch(InterruptedException | ExecutionException e){
+                e.printStackTrace();
+            }
+        }
+        pool.shutdown();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%nProbe sweep on '%s': %d candidate(s) in %.1f s%n",
+                no_probes_dcp_file.getName(), candidates.size(), (System.nanoTime() - start) / 1e9));
+        sb.append(String.format("%-9s  %13s  %8s  %8s  %s%n", "routable", "routed/pins", "pips", "time (s)", "probes file"));
+        for(SweepCandidate c : candidates){
+            if(c.result == null)
+                sb.append(String.format("%-9s  %13s  %8s  %8s  %s (%s)%n", "error", "-", "-", "-", c.file.getPath(), c.error));
+            else
+                sb.append(String.format("%-9s  %13s  %8d  %8.1f  %s%s%n", c.result.fullyRouted() ? "yes" : "no",
+                        c.result.routed + "/" + c.result.pins, c.result.pips, c.result.ns / 1e9, c.file.getPath(),
+                        c == best[0] ? "  <- best" : ""));
+        }
+        if(!quiet())
+            MessageGenerator.briefMessage(sb.toString());
+
+        if(!keep_best || best[0] == null)
+            return false;
+        printIfVerbose("Continuing with best candidate '" + best[0].file.getAbsolutePath() + "'.");
+        design = best[0].design;
+        probe_map = best[0].probe_map;
+        probe_route_result = best[0].result;
+        return true;
+    }
+
+    /**
+     * @return Name for the nets and ports of an eco connection of pin_name that isn't used in cell.
+     */
+    private static String ecoPortName(EDIFCell cell, String pin_name){
+        for(int k = 1 ; ; k++){
+            String name = "rw_eco" + k + "_" + pin_name;
+            if(cell.getNet(name) == null)
+                return name;
         }
-        else
-            padProbeMap(p_count);
-        return step;
     }
 
     /**
@@ -1441,98 +5611,799 @@ public class ILADebug {
      * connections that already exist in a design.
      */
     private void my_updateProbeConnections(){
+        probe_route_result = my_updateProbeConnections(design, probeMaps(), false);
+        printIfVerbose(probe_route_result.toString());
+        printIfVerbose(nameIndex(design).toString());
+        if(!probe_route_result.fullyRouted() && arg_map.containsKey("route_retry"))
+            retryProbeRouting();
+    }
+
+    /**
+     * @return Order the probe pins of this design routed in when a retry last succeeded, else the default.
+     */
+    private PinOrder routeOrder(){
+        if(iii_dir == null || no_ila_dcp_file == null)
+            return PinOrder.DEFAULT;
+        File f = metadataFile(ROUTE_ORDER_FILE);
+        if(!f.exists())
+            return PinOrder.DEFAULT;
+        Map<String, String> map = readMapFile(f.getAbsolutePath(), "=", false);
+        PinOrder order = PinOrder.parse(map.get("order"), map.get("seed"));
+        return (order == null) ? PinOrder.DEFAULT : order;
+    }
+
+    /**
+     * Connects and routes the probes again, once for each pin order not yet tried, each on its own copy
+     * of the intermediate design (read from no_probes_dcp_file) and all at the same time. Attempts still
+     * running after the time budget are abandoned. The first attempt to route every pin wins; if none does
+     * the best one is kept if it beats the first route. The winning order is saved in .iii so the next run of
+     * this design routes in that order first.
+     */
+    private void retryProbeRouting(){
+        int budget = getIntArg("route_retry", 0);
+        List<PinOrder> orders = new ArrayList<>(Arrays.asList(new PinOrder(PinOrder.PROBE, 0),
+                new PinOrder(PinOrder.LONGEST_FIRST, 0), new PinOrder(PinOrder.NEAREST_ILA_FIRST, 0),
+                new PinOrder(PinOrder.RANDOM, 1), new PinOrder(PinOrder.RANDOM, 2)));
+        orders.removeIf(o -> o.toString().equals(probe_route_result.order.toString()));
+        printIfVerbose("\nRetrying probe routing in " + orders.size() + " pin orders, " + budget + " s each.");
+
+        // attempts that time out can't be stopped, daemon threads keep them from holding up exit
+        ExecutorService pool = Executors.newFixedThreadPool(orders.size(), r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<SweepCandidate> attempts = new ExecutorCompletionService<>(pool);
+        for(PinOrder order : orders){
+            attempts.submit(() -> {
+                SweepCandidate c = new SweepCandidate();
+                c.probe_map = probe_map;
+                c.design = Design.readCheckpoint(no_probes_dcp_file.getAbsolutePath());
+                c.result = my_updateProbeConnections(c.design, probeMaps(), false, order, 1);
+                return c;
+            });
+        }
+        SweepCandidate best = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(budget);
+        for(int i = 0 ; i < orders.size() ; i++){
+            Future<SweepCandidate> f;
+            try {
+                f = attempts.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch(InterruptedException ie){
+                break;
+            }
+            if(f == null){
+                printIfVerbose("Time budget spent, abandoning " + (orders.size() - i) + " attempt(s).");
+                break;
+            }
+            SweepCandidate c;
+            try {
+                c = f.get();
+            } catch(InterruptedException | ExecutionException e){
+                printIfVerbose("A retry failed (" + e.getCause() + ").");
+                continue;
+            }
+            printIfVerbose(String.format("  %s: routed %d of %d pins in %.1f s.", c.result.order, c.result.routed,
+                    c.result.pins, c.result.ns / 1e9));
+            if(best == null || c.betterThan(best))
+                best = c;
+            if(c.result.fullyRouted())
+                break;
+        }
+        pool.shutdownNow();
+
+        if(best == null || !best.result.betterThan(probe_route_result)){
+            MessageGenerator.briefMessage("No retry routed more probe pins than the first route.");
+            return;
+        }
+        design = best.design;
+        probe_route_result = best.result;
+        MessageGenerator.briefMessage("Retry in " + probe_route_result.order + " order: " + probe_route_result);
+        if(probe_route_result.fullyRouted() && iii_dir != null){
+            List<String> lines = new ArrayList<>();
+            lines.add("# Probe pin order that last routed every probe of this design.");
+            lines.add("order = " + probe_route_result.order.name);
+            lines.add("seed = " + probe_route_result.order.seed);
+            FileTools.writeLinesToTextFile(lines, metadataFile(ROUTE_ORDER_FILE).getAbsolutePath());
+        }
+    }
+    /**
+     * Same, but on the given design and probe map, which may differ from the loaded ones.
+     * @return Routing statistics.
+     */
+    private ProbeRouteResult my_updateProbeConnections(Design design, ProbeMap probe_map){
+        return my_updateProbeConnections(design, probe_map, false);
+    }
+    /**
+     * @param eco The probes were connected before (design is a previous output). New nets and ports get
+     * names not used by earlier connections, whose unloaded remains are left in the netlist.
+     */
+    private ProbeRouteResult my_updateProbeConnections(Design design, ProbeMap probe_map, boolean eco){
+        return my_updateProbeConnections(design, Collections.singletonList(probe_map), eco);
+    }
+    /**
+     * Same, for the probe maps of several ilas.
+     */
+    private ProbeRouteResult my_updateProbeConnections(Design design, List<ProbeMap> maps, boolean eco){
+        // a sweep already routes its candidates in parallel
+        int threads = arg_map.containsKey("sweep") ? 1 : getIntArg("jobs", 1);
+        return my_updateProbeConnections(design, maps, eco, routeOrder(), threads);
+    }
+    /**
+     * Probe wires are reconnected one ila after another, as the netlist can't be changed from more than one
+     * thread, then the pins of all ilas are routed together.
+     * @param order Order to route the probe pins in.
+     * @param threads Threads to route on, see routeProbePins().
+     */
+    private ProbeRouteResult my_updateProbeConnections(Design design, List<ProbeMap> maps, boolean eco, PinOrder order,
+                int threads){
+        long start = System.nanoTime();
+        HierNameIndex index = nameIndex(design);
+        IlaSinkTable sinks = ilaSinkTable(design);
+        int tiedPins = 0;
 		ArrayList<SitePinInst> pinsToRoute = new ArrayList<>(); 
-		for(Entry<String,String> e : probe_map.entrySet()){
-            String hierPinName = e.getKey();
-            String cellInstName = EDIFTools.getHierarchicalRootFromPinName(hierPinName);
-			EDIFCellInst i = design.getNetlist().getCellInstFromHierName(cellInstName);
-			String pinName = hierPinName.substring(hierPinName.lastIndexOf(EDIFTools.EDIF_HIER_SEP)+1);
-			EDIFPortInst portInst = i.getPortInst(pinName);
-			EDIFNet net = portInst.getNet();
-            String parentCellInstName = cellInstName.contains(EDIFTools.EDIF_HIER_SEP) ? cellInstName.substring(0,cellInstName.lastIndexOf(EDIFTools.EDIF_HIER_SEP)) : "";
-            Net oldPhysNet = null;
-            try{
-                oldPhysNet = design.getNetlist().getPhysicalNetFromPin(parentCellInstName, portInst, design);
-            } catch(IndexOutOfBoundsException iobe){
-                oldPhysNet = null;
-            }
-			// Find the sink flop
-			String hierInstName = cellInstName.contains(EDIFTools.EDIF_HIER_SEP) ? cellInstName.substring(0, cellInstName.lastIndexOf('/')) : ""; 
-			EDIFHierPortInst startingPoint = new EDIFHierPortInst(hierInstName, portInst);
-			ArrayList<EDIFHierPortInst> sinks = EDIFTools.findSinks(startingPoint);
-			if(sinks.size() != 1) {
-				System.err.println("ERROR: Currently we only support a single flip flop "
-						+ "sink for probe re-routes, found " + sinks.size() + " on " + e.getKey() + ", skipping...");
-				continue;
-			}
+        Set<Net> destNets = new HashSet<>();
+        Set<String> touchedNets = new HashSet<>();
+        boolean staticNets = false;
+        Map<String, Integer> latency = new HashMap<>();
+        long routeTiles = 0;
+        int routeTilesN = 0;
+        RoutingRegion region = new RoutingRegion();
+        String parentCellInstName = ProbeMap.ILA_PARENT;
+        List<ProbePipeliner> pipeliners = new ArrayList<>();
+        for(ProbeMap probe_map : maps){
+            String cellInstName = probe_map.ila_inst;
+            ProbePipeliner pipeliner = pipeliner(design, index, cellInstName);
+            if(pipeliner != null)
+                pipeliners.add(pipeliner);
+    		for(int p = 0 ; p < probe_map.length() ; p++){
+                if(!probe_map.isAssigned(p))
+                    continue;
+                String hierPinName = probe_map.probe(p);
+                String probeNet = probe_map.get(p);
+    			EDIFCellInst i = index.getCellInst(cellInstName);
+    			String pinName = ProbeMap.pinName(p);
+    			EDIFPortInst portInst = i.getPortInst(pinName);
+    			EDIFNet net = portInst.getNet();
+                Net oldPhysNet = null;
+                try{
+                    oldPhysNet = index.getPhysicalNetFromPin(parentCellInstName, portInst);
+                } catch(IndexOutOfBoundsException iobe){
+                    oldPhysNet = null;
+                }
+    			// Find the sink flop
+    			IlaSinkTable.Sink sinkFlop = sinks.get(design, index, hierPinName);
+    			if(sinkFlop.count != 1) {
+    				System.err.println("ERROR: Currently we only support a single flip flop "
+    						+ "sink for probe re-routes, found " + sinkFlop.count + " on " + hierPinName + ", skipping...");
+    				continue;
+    			}
 				
-			EDIFHierPortInst sinkFlop = sinks.get(0);
-            Cell c = design.getCell(sinkFlop.getFullHierarchicalInstName());
-            SitePinInst physProbeInPin = null;
-            try{
-                physProbeInPin = c.unrouteLogicalPinInSite(sinkFlop.getPortInst().getName());
-            } catch(NullPointerException npe){
-                physProbeInPin = null;
-            }
+                Cell c = design.getCell(sinkFlop.cell);
+                SitePinInst physProbeInPin = null;
+                try{
+                    physProbeInPin = c.unrouteLogicalPinInSite(sinkFlop.port);
+                } catch(NullPointerException npe){
+                    physProbeInPin = null;
+                }
 			
-			// Disconnect probe from current net
-			net.removePortInst(portInst);
-			// Unroute the portion of physical route to old probe net
-			if(physProbeInPin != null) 
-				oldPhysNet.removePin(physProbeInPin,true);
+    			// Disconnect probe from current net
+    			net.removePortInst(portInst);
+    			// Unroute the portion of physical route to old probe net
+    			if(physProbeInPin != null) 
+    				oldPhysNet.removePin(physProbeInPin,true);
+    			if(oldPhysNet != null)
+    				touchedNets.add(oldPhysNet.getName());
 			
-			// Connect probe to new net
-			String newPortName = "rw_"+ pinName;
-			EDIFNet newNet = net.getParentCell().createNet(newPortName);
-			newNet.addPortInst(portInst);
-
-			EDIFCellInst parent = design.getNetlist().getCellInstFromHierName(parentCellInstName);
-			EDIFHierCellInst parentInst = new EDIFHierCellInst(parentCellInstName, parent);
-			EDIFTools.connectDebugProbe(newNet, e.getValue(), newPortName, parentInst, design.getNetlist(), null);
+    			Net destPhysNet = null;
+    			boolean tied = isTieOff(probeNet);
+    			if(tied){
+    				// Tie probe to a static net, vivado routes it from the nearest tie off
+    				NetType type = probeNet.equals(TIE_VCC) ? NetType.VCC : NetType.GND;
+    				EDIFTools.getStaticNet(type, net.getParentCell(), design.getNetlist()).addPortInst(portInst);
+    				destPhysNet = (type == NetType.VCC) ? design.getVccNet() : design.getGndNet();
+    				staticNets = true;
+    			}
+    			else {
+    				// Connect probe to new net
+    				String newPortName = eco ? ecoPortName(net.getParentCell(), pinName) : "rw_"+ pinName;
+    				EDIFNet newNet = net.getParentCell().createNet(newPortName);
+    				newNet.addPortInst(portInst);
+
+    				EDIFCellInst parent = index.getCellInst(parentCellInstName);
+    				EDIFHierCellInst parentInst = new EDIFHierCellInst(parentCellInstName, parent);
+    				EDIFTools.connectDebugProbe(newNet, probeNet, newPortName, parentInst, design.getNetlist(), null);
 			
-			String parentNet = design.getNetlist().getParentNetName(e.getValue());
-			Net destPhysNet = design.getNet(parentNet);
+    				destPhysNet = index.getParentNet(probeNet);
+    				if(destPhysNet.getSource() != null){
+    					routeTiles += destPhysNet.getSource().getTile().getManhattanDistance(c.getSite().getTile());
+    					routeTilesN++;
+    				}
+    				if(pipeliner != null){
+    					Net srcPhysNet = destPhysNet;
+    					destPhysNet = pipeliner.insert(newNet, srcPhysNet, c.getSite(), newPortName.replace('[', '_').replace("]", ""), pinsToRoute);
+    					if(pipeliner.last_stages > 0){
+    						// the ila now samples the last stage
+    						newNet.removePortInst(portInst);
+    						pipeliner.last_net.addPortInst(portInst);
+    						latency.put(hierPinName, pipeliner.last_stages);
+    						destNets.add(srcPhysNet);
+    						touchedNets.add(srcPhysNet.getName());
+    					}
+    				}
+    			}
 			
-            // Route the site appropriately
+                // Route the site appropriately
             
-			String sitePinName = c.getBELName().charAt(0) + "X";
-			BELPin inPin = c.getBEL().getPin(c.getPhysicalPinMapping(sinkFlop.getPortInst().getName()));
-			c.getSiteInst().routeIntraSiteNet(destPhysNet, c.getSite().getBELPin(sitePinName), inPin);
+    			String sitePinName = sinkFlop.site_pin;
+    			BELPin inPin = c.getBEL().getPin(sinkFlop.bel_pin);
+    			c.getSiteInst().routeIntraSiteNet(destPhysNet, c.getSite().getBELPin(sitePinName), inPin);
 			
-			if(physProbeInPin == null){
-				// Previous connection was internal to site, need to route out to site pin
-				physProbeInPin = new SitePinInst(false, sitePinName, c.getSiteInst());
-			}
-			destPhysNet.addPin(physProbeInPin);
-			pinsToRoute.add(physProbeInPin);
-		}
+    			if(physProbeInPin == null){
+    				// Previous connection was internal to site, need to route out to site pin
+    				physProbeInPin = new SitePinInst(false, sitePinName, c.getSiteInst());
+    			}
+    			destPhysNet.addPin(physProbeInPin);
+    			if(tied){
+    				tiedPins++;
+    				continue;
+    			}
+    			touchedNets.add(destPhysNet.getName());
+    			pinsToRoute.add(physProbeInPin);
+                destNets.add(destPhysNet);
+                region.add(c.getSite());
+                if(destPhysNet.getSource() != null)
+                    region.add(destPhysNet.getSource().getSite());
+    		}
+        }
 		
 		// Attempt route new net to probe
-		// TODO - Should we add a flop?
-		Router r = new Router(design);
-		r.routePinsReEntrant(pinsToRoute, false);
+        ProbeRouteResult result = new ProbeRouteResult();
+        if(!pipeliners.isEmpty()){
+            List<String> summaries = new ArrayList<>();
+            for(ProbePipeliner pipeliner : pipeliners){
+                summaries.add(pipeliner.toString());
+                if(pipeliner.flops > 0){
+                    // vivado routes the clock, enable and reset of the stages
+                    touchedNets.add(pipeliner.clk_phys.getName());
+                    staticNets = true;
+                }
+            }
+            result.pipeline = String.join("\n", summaries);
+            result.latency = latency;
+        }
+        result.pins = pinsToRoute.size();
+        result.tied = tiedPins;
+        result.tiles = routeTiles;
+        result.tiles_n = routeTilesN;
+        result.nets = touchedNets;
+        result.static_nets = staticNets;
+        result.pips = -ProbeRouteResult.countPIPs(destNets);
+        result.order = order;
+        order.sort(pinsToRoute);
+        routeProbePins(design, pinsToRoute, region, threads, result);
+        result.pips += ProbeRouteResult.countPIPs(destNets);
+        for(SitePinInst p : pinsToRoute)
+            if(p.isRouted())
+                result.routed++;
+        result.ns = System.nanoTime() - start;
+        return result;
     }
     
+    /**
+     * @return A pipeliner for design and the ila ila_inst if pipelining was requested, else null.
+     */
+    private ProbePipeliner pipeliner(Design design, HierNameIndex index, String ila_inst){
+        if(!arg_map.containsKey("pipeline"))
+            return null;
+        String mhz = arg_map.get("pipeline").get(0);
+        double f = 0;
+        try {
+            f = Double.parseDouble(mhz);
+        } catch(NumberFormatException nfe){
+            f = 0;
+        }
+        if(!(f > 0))
+            errorAndExit("Pipeline clock must be a frequency in MHz, not '" + mhz + "'.\n");
+        ProbePipeliner pipeliner = new ProbePipeliner(design, ProbeMap.ILA_PARENT,
+                index.getCellInst(ProbeMap.ILA_PARENT).getCellType(), f);
+        EDIFPortInst clk = index.getCellInst(ila_inst).getPortInst("clk");
+        pipeliner.clk = clk.getNet();
+        pipeliner.clk_phys = index.getPhysicalNetFromPin(ProbeMap.ILA_PARENT, clk);
+        pipeliner.vcc = EDIFTools.getStaticNet(NetType.VCC, pipeliner.top, design.getNetlist());
+        pipeliner.gnd = EDIFTools.getStaticNet(NetType.GND, pipeliner.top, design.getNetlist());
+        return pipeliner;
+    }
+
+    /**
+     * Routes pins with RapidWright's router. If a route margin was given, the pins are first routed inside
+     * region grown by the margin, and pins that fail are routed again in a region grown by twice the
+     * margin, up to ROUTE_REGION_GROWS times. Pins still unrouted are then routed without a bound.
+     * With more than one thread the pins are first routed in parallel, see routeParallel().
+     * Each router call is recorded in result.passes.
+     */
+    private void routeProbePins(Design design, ArrayList<SitePinInst> pins, RoutingRegion region, int threads,
+                ProbeRouteResult result){
+        int margin = getIntArg("route_margin", -1);
+        ArrayList<SitePinInst> remaining = pins;
+        if(threads > 1 && pins.size() > 1)
+            remaining = routeParallel(design, pins, threads, margin, result);
+        if(margin >= 0 && !region.isEmpty()){
+            for(int grow = 0 ; grow <= ROUTE_REGION_GROWS && !remaining.isEmpty() ; grow++){
+                RoutingRegion bound = region.grow(margin, design.getDevice());
+                if(bound.coversDevice(design.getDevice()))
+                    break;
+                remaining = routePass(design, remaining, bound, result);
+                margin = Math.max(1, 2 * margin);
+            }
+        }
+        if(!remaining.isEmpty())
+            routePass(design, remaining, null, result);
+    }
+
+    /**
+     * Routes pins in groups on up to threads threads. Pins are grouped by the clock region of their site,
+     * except that all pins of a net go to the group of its first pin, so no two threads change the same net.
+     * The router isn't safe to run on one design from several threads, so the first thread routes its groups
+     * on design and each other thread on its own copy of it. The copies cost a checkpoint write and a read
+     * and a design's memory each, so at most MAX_ROUTE_THREADS threads are used. Each group gets its own router, bounded by a
+     * route margin to the region around its own pins. Once all threads are done, the routes made on the
+     * copies are copied back to design one net at a time.
+     * Routes of different threads may then use the same node. Of nets sharing a node, the net of the
+     * earlier group keeps its route and the new routes of the others are removed.
+     * @return Pins left unrouted, including those whose route was removed, for a serial pass to finish.
+     */
+    private ArrayList<SitePinInst> routeParallel(Design design, ArrayList<SitePinInst> pins, int threads,
+                int margin, ProbeRouteResult result){
+        long pips_before = RouterPass.pipsOf(pins);
+        long start = System.nanoTime();
+        Map<Net, String> net_group = new HashMap<>();
+        Map<String, ArrayList<SitePinInst>> groups = new TreeMap<>();
+        for(SitePinInst p : pins){
+            String key = net_group.computeIfAbsent(p.getNet(), n -> {
+                ClockRegion cr = p.getSite().getClockRegion();
+                return (cr == null) ? "" : cr.getName();
+            });
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(p);
+        }
+
+        List<ArrayList<SitePinInst>> group_pins = new ArrayList<>(groups.values());
+        List<Map<Net, Set<PIP>>> old_pips = new ArrayList<>();
+        for(ArrayList<SitePinInst> g : group_pins){
+            Map<Net, Set<PIP>> pips = new HashMap<>();
+            for(SitePinInst p : g)
+                pips.computeIfAbsent(p.getNet(), n -> new HashSet<>(n.getPIPs()));
+            old_pips.add(pips);
+        }
+
+        int n_threads = Math.min(Math.min(threads, MAX_ROUTE_THREADS), group_pins.size());
+        if(threads > MAX_ROUTE_THREADS)
+            printIfVerbose("Routing probes on " + MAX_ROUTE_THREADS + " threads, as each thread after the first "
+                    + "needs a copy of the design.");
+        List<Design> designs = designCopies(design, n_threads - 1);
+        designs.add(0, design);
+        // pins of each group in the design it is routed on
+        List<ArrayList<SitePinInst>> routed_pins = new ArrayList<>(Collections.nCopies(group_pins.size(), null));
+        ExecutorService pool = Executors.newFixedThreadPool(n_threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0 ; t < n_threads ; t++){
+            Design d = designs.get(t);
+            int first = t;
+            futures.add(pool.submit(() -> {
+                for(int i = first ; i < group_pins.size() ; i += n_threads){
+                    ArrayList<SitePinInst> g = (d == design) ? group_pins.get(i) : pinsIn(d, group_pins.get(i));
+                    routed_pins.set(i, g);
+                    // made just before routing, so it sees the routes of this thread's earlier groups
+                    Router r = new Router(d);
+                    if(margin >= 0){
+                        RoutingRegion region = new RoutingRegion();
+                        for(SitePinInst p : g){
+                            if(p == null)
+                                continue;
+                            region.add(p.getSite());
+                            if(p.getNet().getSource() != null)
+                                region.add(p.getNet().getSource().getSite());
+                        }
+                        if(!region.isEmpty())
+                            r.setRoutingPblock(region.grow(margin, d.getDevice()).toPBlock(d.getDevice()));
+                    }
+                    ArrayList<SitePinInst> to_route = new ArrayList<>(g);
+                    to_route.removeIf(p -> p == null);
+                    r.routePinsReEntrant(to_route, false);
+                }
+            }));
+        }
+        try {
+            for(Future<?> f : futures)
+                f.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while routing probes.", e);
+        } catch(ExecutionException e){
+            throw new RuntimeException("Routing probes failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // copy the routes made on the copies back to design
+        for(int i = 0 ; i < group_pins.size() ; i++){
+            ArrayList<SitePinInst> g = group_pins.get(i);
+            ArrayList<SitePinInst> routed = routed_pins.get(i);
+            if(routed == g)
+                continue;
+            for(int k = 0 ; k < g.size() ; k++){
+                SitePinInst copy = routed.get(k);
+                if(copy == null)
+                    continue;
+                g.get(k).getNet().setPIPs(new ArrayList<>(copy.getNet().getPIPs()));
+                g.get(k).setRouted(copy.isRouted());
+            }
+        }
+
+        // find nodes that the new routes of more than one net use
+        Map<Node, Net> node_owner = new HashMap<>();
+        Set<Net> conflicting = new HashSet<>();
+        for(Map<Net, Set<PIP>> pips : old_pips){
+            for(Entry<Net, Set<PIP>> e : pips.entrySet()){
+                Net net = e.getKey();
+                for(PIP pip : net.getPIPs()){
+                    if(e.getValue().contains(pip))
+                        continue;
+                    Net owner = node_owner.putIfAbsent(pip.getEndNode(), net);
+                    if(owner != null && owner != net)
+                        conflicting.add(net);
+                }
+            }
+        }
+        // drop the new routes of the nets that lost a node
+        for(Map<Net, Set<PIP>> pips : old_pips){
+            for(Entry<Net, Set<PIP>> e : pips.entrySet()){
+                if(!conflicting.contains(e.getKey()))
+                    continue;
+                List<PIP> kept = new ArrayList<>();
+                for(PIP pip : e.getKey().getPIPs())
+                    if(e.getValue().contains(pip))
+                        kept.add(pip);
+                e.getKey().setPIPs(kept);
+            }
+        }
+
+        RouterPass pass = new RouterPass();
+        pass.pins = pins.size();
+        pass.groups = group_pins.size();
+        pass.threads = n_threads;
+        pass.conflicts = conflicting.size();
+        pass.pips = RouterPass.pipsOf(pins) - pips_before;
+        ArrayList<SitePinInst> failed = new ArrayList<>();
+        for(SitePinInst p : pins){
+            if(conflicting.contains(p.getNet()))
+                p.setRouted(false);
+            if(p.isRouted())
+                pass.routed++;
+            else
+                failed.add(p);
+        }
+        pass.ns = System.nanoTime() - start;
+        result.passes.add(pass);
+        return failed;
+    }
+
+    /**
+     * @return n copies of design, read back from a temporary checkpoint of it on up to n threads.
+     */
+    private List<Design> designCopies(Design design, int n){
+        List<Design> copies = new ArrayList<>();
+        if(n < 1)
+            return copies;
+        File f = null;
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            f = File.createTempFile("route_copy_", ".dcp", iii_dir);
+            String filename = f.getAbsolutePath();
+            design.writeCheckpoint(filename);
+            List<Future<Design>> futures = new ArrayList<>();
+            for(int i = 0 ; i < n ; i++)
+                futures.add(pool.submit(() -> Design.readCheckpoint(filename)));
+            for(Future<Design> c : futures)
+                copies.add(c.get());
+        } catch(IOException e){
+            throw new RuntimeException("Couldn't copy the design to route on: " + e.getMessage(), e);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while copying the design to route on.", e);
+        } catch(ExecutionException e){
+            throw new RuntimeException("Couldn't copy the design to route on: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if(f != null)
+                FileTools.deleteFile(f.getAbsolutePath());
+        }
+        printIfVerbose("Routing probes on " + n + " copies of the design besides the design itself.");
+        return copies;
+    }
+
+    /**
+     * @return The pins of d on the same nets and site pins as pins, in the same order, with null for any that
+     * d doesn't have.
+     */
+    private static ArrayList<SitePinInst> pinsIn(Design d, List<SitePinInst> pins){
+        ArrayList<SitePinInst> mapped = new ArrayList<>();
+        for(SitePinInst p : pins){
+            Net net = d.getNet(p.getNet().getName());
+            SitePinInst found = null;
+            if(net != null)
+                for(SitePinInst q : net.getPins())
+                    if(q.getSite() == p.getSite() && q.getName().equals(p.getName()))
+                        found = q;
+            mapped.add(found);
+        }
+        return mapped;
+    }
+
+    /**
+     * Routes pins in one router call.
+     * @param bound Region to route in, or null for the whole device.
+     * @return The pins that didn't route.
+     */
+    private static ArrayList<SitePinInst> routePass(Design design, ArrayList<SitePinInst> pins, RoutingRegion bound,
+                ProbeRouteResult result){
+        RouterPass pass = new RouterPass();
+        pass.pins = pins.size();
+        long pips_before = RouterPass.pipsOf(pins);
+        long start = System.nanoTime();
+        Router r = new Router(design);
+        if(bound != null){
+            pass.region = bound.toString();
+            r.setRoutingPblock(bound.toPBlock(design.getDevice()));
+        }
+        r.routePinsReEntrant(pins, false);
+        pass.ns = System.nanoTime() - start;
+        pass.pips = RouterPass.pipsOf(pins) - pips_before;
+
+        ArrayList<SitePinInst> failed = new ArrayList<>();
+        for(SitePinInst p : pins){
+            if(p.isRouted())
+                pass.routed++;
+            else
+                failed.add(p);
+        }
+        result.passes.add(pass);
+        return failed;
+    }
+
+    /**
+     * @return True if an eco was requested and can start from the previous outputs: the output dcp and
+     * probes file exist and the probes file was written from the current intermediate design. The probes file
+     * is written last, after vivado wrote the other outputs, so it only exists if the previous run finished.
+     * Outputs with pipelined probes aren't used, as an eco would lose their latency and leave their stages.
+     */
+    private boolean ecoBaseUsable(){
+        if(!arg_map.containsKey("eco") || arg_map.containsKey("sweep"))
+            return false;
+        if(!output_dcp_file.exists() || !output_probes_file.exists()){
+            printIfVerbose("ECO: no previous output dcp and probes file. Running full flow.");
+            return false;
+        }
+        String hash = (manifest == null) ? null : manifest.get("intermediate_dcp.sha256");
+        String prev_hash = null;
+        boolean pipelined = false;
+        for(String line : FileTools.getLinesFromTextFile(output_probes_file.getAbsolutePath())){
+            if(line.contains(PIPELINED_MARK))
+                pipelined = true;
+            if(!line.startsWith("#"))
+                continue;
+            String[] parts = line.substring(1).split("=");
+            if(parts.length == 2 && parts[0].trim().equals(INTERMEDIATE_HASH_KEY))
+                prev_hash = parts[1].trim();
+        }
+        if(pipelined){
+            printIfVerbose("ECO: previous outputs have pipelined probes. Running full flow.");
+            return false;
+        }
+        if(hash == null || !hash.equals(prev_hash)){
+            printIfVerbose("ECO: previous outputs weren't made from the current intermediate design. Running full flow.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reconnects only the probe wires whose net differs from the previous output probes file.
+     * The other probes keep their connections and routes.
+     * @return False if no probe changed.
+     */
+    private boolean ecoProbeConnections(){
+        ProbeMap previous = readProbesFile(output_probes_file, false);
+        ProbeMap changed = new ProbeMap();
+        for(int i = 0 ; i < probe_map.length() ; i++){
+            if(!probe_map.isAssigned(i))
+                continue;
+            String net = probe_map.get(i);
+            if(!previous.isAssigned(i) || (net == null ? previous.get(i) != null : !net.equals(previous.get(i))))
+                changed.put(i, net);
+        }
+        printIfVerbose("ECO: " + changed.size() + " of " + probe_map.size() + " probe wires changed.");
+        if(changed.size() == 0)
+            return false;
+        probe_route_result = my_updateProbeConnections(design, changed, true);
+        printIfVerbose(probe_route_result.toString());
+        return true;
+    }
+
+    /**
+     * Loads the sink table of the intermediate design from .iii, or builds it from d and saves it.
+     * A saved table is only used if it was made from the intermediate design recorded in the manifest.
+     * @param d Intermediate design before any probes are reconnected.
+     */
+    private synchronized IlaSinkTable ilaSinkTable(Design d){
+        if(sink_table != null)
+            return sink_table;
+        String hash = (manifest == null) ? null : manifest.get("intermediate_dcp.sha256");
+        File f = (hash == null) ? null : metadataFile("_ila_sinks.txt");
+        if(f != null && f.exists()){
+            IlaSinkTable t = IlaSinkTable.read(f);
+            if(hash.equals(t.intermediate_hash)){
+                printIfVerbose("Read sinks of " + t.size() + " ila probe pins from '" + f.getAbsolutePath() + "'.");
+                sink_table = t;
+                return t;
+            }
+            printIfVerbose("Sink table '" + f.getAbsolutePath() + "' is of another intermediate design.");
+        }
+        sink_table = IlaSinkTable.build(d, nameIndex(d), ilaInsts(d), getIlaProbeWidth(d));
+        printIfVerbose(String.format("Found sinks of %d ila probe pins in %.2f s.", sink_table.size(), sink_table.build_ns / 1e9));
+        if(f != null){
+            sink_table.intermediate_hash = hash;
+            sink_table.write(f);
+        }
+        return sink_table;
+    }
+
+    /**
+     * Finds a pre-implemented ila core matching the part and ila settings in the ila cache.
+     * On a miss the core is generated with vivado and stored in the cache.
+     * @return Absolute path of the core dcp or null if there is no cache or the core couldn't be generated.
+     */
+    private String getIlaCoreDcp(){
+        if(ila_cache == null)
+            return null;
+        Map<String, String> params = IlaCoreCache.params(design.getPartName(), probe_count, probe_depth, clk_net);
+        String key = IlaCoreCache.key(params);
+        File core = ila_cache.lookup(key);
+        if(core != null){
+            printIfVerbose("Using cached ila core '" + core.getAbsolutePath() + "'.");
+            return core.getAbsolutePath();
+        }
+
+        printIfVerbose("No cached ila core for " + params + ". Generating one.");
+        File tmp = ila_cache.tempFile(key);
+        long start = System.nanoTime();
+        TCLScript script = new TCLScript("create_ila_core.tcl");
+        script.add(new TCLCommand(TCLEnum.CREATE_ILA_DCP, null, tmp.getAbsolutePath(),
+                params.get("part") + " " + probe_count + " " + probe_depth));
+        script.run();
+        core = ila_cache.store(key, tmp, params, System.nanoTime() - start);
+        if(core == null)
+            printIfVerbose("Failed to generate ila core. ILAInserter will generate it.");
+        return core == null ? null : core.getAbsolutePath();
+    }
+
+    /**
+     * Adds top/u_ila_1 and up for ila_shards after the first, as more instances of the ila core ILAInserter
+     * added as u_ila_0. The clock of each is brought to it through the hierarchy the way probed nets are,
+     * and its probe wires are tied to GND until the probes are connected. Vivado places them with u_ila_0.
+     */
+    private void addShardIlas(Design d){
+        HierNameIndex index = nameIndex(d);
+        EDIFCellInst ila = index.getCellInst(ProbeMap.ILA_INST);
+        EDIFCellInst parent = index.getCellInst(ProbeMap.ILA_PARENT);
+        EDIFCell parent_cell = parent.getCellType();
+        EDIFHierCellInst parent_inst = new EDIFHierCellInst(ProbeMap.ILA_PARENT, parent);
+        EDIFNet gnd = EDIFTools.getStaticNet(NetType.GND, parent_cell, d.getNetlist());
+        for(IlaShard s : ila_shards.subList(1, ila_shards.size())){
+            String name = s.probe_map.ila_inst.substring(ProbeMap.ILA_PARENT.length() + EDIFTools.EDIF_HIER_SEP.length());
+            EDIFCellInst inst = new EDIFCellInst(name, ila.getCellType(), parent_cell);
+            String clk_port = "rw_" + name + "_clk";
+            EDIFNet clk = parent_cell.createNet(clk_port);
+            clk.createPortInst("clk", inst);
+            EDIFTools.connectDebugProbe(clk, s.ila_clk, clk_port, parent_inst, d.getNetlist(), null);
+            for(int i = 0 ; i < probe_count ; i++)
+                gnd.createPortInst("probe0", i, inst);
+        }
+        printIfVerbose("Added " + (ila_shards.size() - 1) + " more ila(s) for clocks " + IlaShard.clocks(
+                ila_shards.subList(1, ila_shards.size())) + ".");
+    }
+
+    /**
+     * Adds an ila to the design and writes the intermediate checkpoint to dcp_file.
+     * 
+     * The ila is added to the already loaded original design and the viewref fix
+     * (see fixEdifInDCP()) is made to the in-memory netlist, so the checkpoint is only
+     * written once. If that fails, falls back to running ILAInserter on the original
+     * checkpoint file and fixing the edif of the checkpoint it writes.
+     * @param dcp_file Absolute path to write the intermediate checkpoint to.
+     */
+    private void insertIla(String dcp_file){
+        long start = System.nanoTime();
+        long input_bytes = no_ila_dcp_file.length();
+        boolean in_process = true;
+        String ila_core_dcp = getIlaCoreDcp();
+        try {
+            ILAInserter.applyILAToDesign(design, ila_core_dcp, probe_count, probe_depth,
+                    (ila_shards == null) ? clk_net : ila_shards.get(0).ila_clk);
+            EDIFCellInst top = design.getNetlist().getTopCell().getCellInst("top");
+            if(top == null)
+                throw new RuntimeException("Couldn't find instance 'top' in design with ila.");
+            if(ila_shards != null)
+                addShardIlas(design);
+            // Vivado won't open the checkpoint unless top refers to the netlist view.
+            top.setViewref(new EDIFName("netlist"));
+            design.writeCheckpoint(dcp_file);
+        } catch(RuntimeException e){
+            printIfVerbose("\nCouldn't add ila to loaded design (" + e.getMessage() + ").");
+            if(ila_shards != null)
+                errorAndExit("ILAInserter can only add one ila. Can't add an ila per clock domain.\n");
+            printIfVerbose("Adding ila to '" + no_ila_dcp_file.getAbsolutePath() + "' using ILAInserter.");
+            in_process = false;
+
+            String filename_bad_edif = dcp_file.replace(".dcp", "_bad_edif.dcp");
+            List<String> ila_inserter_args = new ArrayList<>();
+            ila_inserter_args.add(no_ila_dcp_file.getAbsolutePath());
+            ila_inserter_args.add(filename_bad_edif);
+            ila_inserter_args.add(Integer.toString(probe_count));
+            ila_inserter_args.add(Integer.toString(probe_depth));
+            ila_inserter_args.add(clk_net);
+            if(ila_core_dcp != null)
+                ila_inserter_args.add(ila_core_dcp);
+            ILAInserter.main(ila_inserter_args.toArray(new String[0]));
+
+            // Modify the edif file so vivado will open the checkpoint.
+            fixEdifInDCP(filename_bad_edif, dcp_file);
+        }
+
+        long written = new File(dcp_file).length();
+        phases.wrote(new File(dcp_file));
+        printIfVerbose(String.format("Added ila in %.1f s. Wrote %d bytes of checkpoint.",
+                (System.nanoTime() - start) / 1e9, written));
+        if(in_process)
+            printIfVerbose("Avoided reading '" + no_ila_dcp_file.getName() + "' again (" + input_bytes + " bytes) and writing, "
+                    + "reading and deleting a _bad_edif checkpoint (about " + 2 * written + " bytes of I/O).");
+    }
+
     /**
      * Main workflow to generate a placed and routed dcp which has the original design 
      * plus an ila and probes.
      * @param args Command line arguments. Usage described in help (-h or --help).
      */
     public void start(String[] args){
+        phases.begin("parse_args");
+        mapArgs(args); // parse arguments
+        run();
+    }
+
+    /**
+     * Runs the workflow with the arguments already parsed by mapArgs().
+     */
+    void run(){
         TCLScript script = null;
         String filename = null;
 
-        mapArgs(args); // parse arguments
+        phases.begin("set_files");
         setFiles(); // find files that were input
         checkForFileCollisions();
         readMetadata();
+        startDebugNetScan();
+        phases.begin("load_design");
         int step = loadDesign();
+        phases.begin("load_probes");
         step = loadProbes(step);
+        if(debug_net_scan != null)
+            debug_net_scan.cancel(true);
         
         // add ila to design
         if(step == 0){
+            phases.begin("insert_ila");
             // add ila
-            //TODO future work: cache ila.dcp files (from .ila) generated so that they can be reused.
+            // ila cores are reused from ila_cache if one was given (see getIlaCoreDcp())
             if(no_probes_dcp_file == null){
                 filename = no_ila_dcp_file.getName().replaceFirst("_wrapper_[\\S|\\s]*", "_ila.dcp");
                 no_probes_dcp_file = new File(iii_dir, filename);
@@ -1547,54 +6418,153 @@ public class ILADebug {
                 FileTools.deleteFile(edif.getAbsolutePath());
             }            
 
-            String filename_bad_edif = filename.replace(".dcp", "_bad_edif.dcp");
-
-            String[] ila_inserter_args = {
-                no_ila_dcp_file.getAbsolutePath(),
-                filename_bad_edif,
-                Integer.toString(probe_count),
-                Integer.toString(probe_depth),
-                clk_net
-            };
-            writeMetadata();
+            // the ila's clock regions are chosen on the original design, where the probed nets are placed
+            File ila_pblock_script = arg_map.containsKey("ila_pblock") ? writeIlaPblockScript() : null;
+            File ila_hub_script = (ila_shards != null && ila_shards.size() > 1) ? writeIlaHubScript() : null;
 
             // Add ila and write intermediate checkpoint
-            ILAInserter.main(ila_inserter_args);
-
-            // Modify the edif file so vivado will open the checkpoint.
-            fixEdifInDCP(filename_bad_edif, filename);
+            insertIla(filename);
             
             // place design
+            phases.begin("place");
             script = new TCLScript(filename, filename, "place_design.tcl");
+            // not quiet, so a pblock that didn't get the ila stops the run
+            if(ila_pblock_script != null)
+                script.add(new TCLCommand(TCLEnum.SOURCE_TCL, "", ila_pblock_script.getAbsolutePath()));
+            if(ila_hub_script != null)
+                script.add(new TCLCommand(TCLEnum.SOURCE_TCL, "q", ila_hub_script.getAbsolutePath()));
             script.add(TCLEnum.PLACE);
             script.add(TCLEnum.WRITE_DCP, "f" + (quiet() ? "q" : "") + (extraVerbose() ? "v" : ""));
-            script.run();
+            if(!script.run())
+                errorAndExit("Vivado failed to place the design with the ila. See '"
+                        + new File(iii_dir, "vivado.log").getAbsolutePath() + "'.\n");
+            phases.wrote(no_probes_dcp_file);
 
+            // placement was done by vivado, so the placed checkpoint must be read back
+            phases.begin("read_placed");
             design = safeReadCheckpoint(no_probes_dcp_file);
+            if(ila_hub_script != null)
+                checkIlaHubPorts(design);
+            writeMetadata();
         }
         
         // route probes into design
-        printIfVerbose("\nStarting to place probes into design.");
-        my_updateProbeConnections();
-        printIfVerbose("Finished placing probes.\n");
+        phases.begin("connect_probes");
+        if(eco_base){
+            if(!ecoProbeConnections()){
+                endRun("eco");
+                MessageGenerator.briefMessage((!verbose() ? "\n" : "") + "No probes changed. Outputs are up to date.\n");
+                return;
+            }
+        }
+        else if(arg_map.containsKey("sweep")){
+            if(!sweepProbes()){
+                endRun("sweep");
+                MessageGenerator.briefMessage((!verbose() ? "\n" : "") + "Finished sweep.\n");
+                return;
+            }
+        }
+        else {
+            printIfVerbose("\nStarting to place probes into design.");
+            my_updateProbeConnections();
+            printIfVerbose("Finished placing probes.\n");
+        }
+        reportIlaPlacement();
+        phases.begin("write_checkpoint");
         filename = output_dcp_file.getAbsolutePath();
+        // the output probes file is only written once all outputs are, an eco run relies on it (see ecoBaseUsable())
+        FileTools.deleteFile(output_probes_file.getAbsolutePath());
         design.writeCheckpoint(filename);
-        
-        // write probes
-        writeProbesFile(output_probes_file.getAbsolutePath());
+        phases.wrote(output_dcp_file);
 
+        phases.begin("route_write");
+        File bitstream = new File(FileTools.removeFileExtension(filename) + TCLEnum.WRITE_BITSTREAM.ext());
+        FileTools.deleteFile(bitstream.getAbsolutePath());
         script = new TCLScript(filename, filename, "place_route_write.tcl");
-        script.add(TCLEnum.ROUTE);      // route
+        File probe_nets_script = arg_map.containsKey("route_probe_nets") ? writeProbeNetsScript() : null;
+        if(probe_nets_script != null){
+            // route only the probe nets, the rest of the design keeps its routing
+            script.add(new TCLCommand(TCLEnum.SOURCE_TCL, "q", probe_nets_script.getAbsolutePath()));
+            script.add(TCLEnum.ROUTE_PROBE_NETS);
+            route_mode = "probe_nets";
+        }
+        else {
+            script.add(TCLEnum.ROUTE);      // route
+            route_mode = "full";
+        }
         script.add(TCLEnum.WRITE_LTX);  // write ltx, dcp, bitstream
         script.add(TCLEnum.WRITE_DCP);
         script.add(TCLEnum.WRITE_BITSTREAM);
-        script.run();
+        if(!script.run() || !bitstream.exists())
+            errorAndExit("Vivado failed to route and write the outputs. See '"
+                    + new File(iii_dir, "vivado.log").getAbsolutePath() + "'.\n");
+        phases.wrote(output_dcp_file);
+
+        // write probes
+        phases.begin("write_probes");
+        writeProbesFile(output_probes_file.getAbsolutePath());
+        phases.wrote(output_probes_file);
+        if(probe_nets_script != null)
+            reportProbeNetsRoute();
+        endRun(eco_base ? "eco" : "full");
 
         printIfVerbose("\nFinal outputs written.");
         MessageGenerator.briefMessage((!verbose() ? "\n" : "") + "Finished.\n");
     }
 
+    /**
+     * Closes the vivado session, prints summaries for the run, writes the phase report and
+     * adds the run to the run history.
+     * @param mode What the run did ('full' or 'sweep'), recorded in the run history.
+     */
+    private void endRun(String mode){
+        if(vivado_session != null){
+            phases.begin("close_vivado");
+            long start = System.nanoTime();
+            vivado_session.close();
+            phases.addVivado(System.nanoTime() - start);
+        }
+        phases.end();
+        if(ila_cache != null && !quiet())
+            MessageGenerator.briefMessage("\n" + ila_cache.summary());
+        printIfVerbose("\n" + phases.summary());
+        writePhaseReport();
+        if(iii_dir != null){
+            String input_sha256 = (manifest == null) ? null : manifest.get("input_dcp.sha256");
+            String design_name = (no_ila_dcp_file == null) ? null : no_ila_dcp_file.getName();
+            Map<String, Object> extra = new LinkedHashMap<>();
+            extra.put("route", route_mode);
+            extra.put("ila_pblock", (manifest == null) ? null : manifest.get("ila_pblock"));
+            if(probe_route_result != null && probe_route_result.tiles_n > 0)
+                extra.put("probe_tiles", probe_route_result.avgTiles());
+            RunHistory.append(iii_dir, phases.historyRecord(design_name, input_sha256, probe_count, probe_depth, mode,
+                    extra));
+        }
+    }
+
+    /**
+     * Writes the phases of this run as JSON to .iii.
+     */
+    private void writePhaseReport(){
+        if(iii_dir == null)
+            return;
+        File f = (no_ila_dcp_file == null) ? new File(iii_dir, "phases.json") : metadataFile("_phases.json");
+        String design_name = (no_ila_dcp_file == null) ? null : no_ila_dcp_file.getName();
+        try {
+            Files.write(f.toPath(), phases.toJson(design_name).getBytes(StandardCharsets.UTF_8));
+            printIfVerbose("Wrote phase report to '" + f.getAbsolutePath() + "'.");
+        } catch(IOException ioe){
+            printIfVerbose("Couldn't write phase report '" + f.getAbsolutePath() + "' (" + ioe.getMessage() + ").");
+        }
+    }
+
     public static void main(String[] args){
+        if(RunHistory.isReport(args))
+            System.exit(RunHistory.run(args) == 0 ? 0 : 1);
+        if(BatchRunner.isBatch(args)){
+            BatchRunner batch = new BatchRunner(args);
+            System.exit(batch.run() == 0 ? 0 : 1);
+        }
         ILADebug ila_dbg = new ILADebug();
         ila_dbg.start(args);
     }
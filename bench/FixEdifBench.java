@@ -0,0 +1,95 @@
+/*
+ * Throughput benchmark for ILADebug.fixEdifInDCP().
+ *
+ * Repeatedly rewrites a copy of a design checkpoint (default: the bundled
+ * tut_2_dsgn_wrapper_routed.dcp) and reports how fast the edif is streamed
+ * through the patcher and how much heap the rewrite needed.
+ *
+ * From the repository root:
+ *      compile: javac -cp .:$CLASSPATH -d bench ILADebug.java bench/FixEdifBench.java
+ *      run: java -cp bench:<RapidWright_dir>/RapidWright:$CLASSPATH FixEdifBench [<dcp>] [<iterations>]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class FixEdifBench {
+
+    /**
+     * @return Uncompressed size in bytes of the edif entries in the dcp.
+     */
+    private static long edifBytes(File dcp) throws IOException {
+        long total = 0;
+        try(ZipFile zf = new ZipFile(dcp)){
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            while(entries.hasMoreElements()){
+                ZipEntry ze = entries.nextElement();
+                if(ze.getName().endsWith(".edf"))
+                    total += ze.getSize();
+            }
+        }
+        return total;
+    }
+
+    private static long peakHeap(){
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if(pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private static void resetPeakHeap(){
+        System.gc();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if(pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dcp = new File(args.length > 0 ? args[0] : "tut_2_dsgn_wrapper_routed.dcp");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int warmup = Math.max(1, iterations / 4);
+
+        File dir = Files.createTempDirectory("fix_edif_bench").toFile();
+        File in = new File(dir, "in.dcp");
+        File out = new File(dir, "out.dcp");
+        long edif_bytes = edifBytes(dcp);
+        long dcp_bytes = dcp.length();
+
+        ILADebug ila_dbg = new ILADebug();
+        long total_ns = 0;
+        long max_peak = 0;
+        for(int i = -warmup ; i < iterations ; i++){
+            // fixEdifInDCP deletes its input
+            Files.copy(dcp.toPath(), in.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            resetPeakHeap();
+            long start = System.nanoTime();
+            if(!ila_dbg.fixEdifInDCP(in.getAbsolutePath(), out.getAbsolutePath()))
+                throw new IOException("fixEdifInDCP failed on '" + dcp.getAbsolutePath() + "'.");
+            long ns = System.nanoTime() - start;
+            if(i >= 0){
+                total_ns += ns;
+                max_peak = Math.max(max_peak, peakHeap());
+            }
+        }
+        out.delete();
+        dir.delete();
+
+        double secs = total_ns / 1e9 / iterations;
+        System.out.printf("dcp:              %s (%d bytes, %d bytes of edif)%n", dcp.getPath(), dcp_bytes, edif_bytes);
+        System.out.printf("iterations:       %d (+%d warmup)%n", iterations, warmup);
+        System.out.printf("time / rewrite:   %.2f ms%n", secs * 1e3);
+        System.out.printf("edif throughput:  %.1f MB/s%n", edif_bytes / secs / 1e6);
+        System.out.printf("dcp throughput:   %.1f MB/s%n", dcp_bytes / secs / 1e6);
+        System.out.printf("peak heap:        %.1f MB%n", max_peak / 1e6);
+    }
+}
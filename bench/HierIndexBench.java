@@ -0,0 +1,120 @@
+/*
+ * Lookup benchmark for ILADebug.HierNameIndex.
+ *
+ * Picks the hierarchical nets of a design checkpoint (default: the bundled
+ * tut_2_dsgn_wrapper_routed.dcp) as probe targets, repeating them to reach the
+ * probe count, and times the name lookups done for each probe by
+ * my_updateProbeConnections(), first directly on the netlist and then through
+ * a new HierNameIndex (building the index is included in its time).
+ *
+ * From the repository root:
+ *      compile: javac -cp .:$CLASSPATH -d bench ILADebug.java bench/HierIndexBench.java
+ *      run: java -cp bench:<RapidWright_dir>/RapidWright:$CLASSPATH HierIndexBench [<dcp>] [<probes>] [<iterations>]
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xilinx.rapidwright.design.Design;
+import com.xilinx.rapidwright.design.Net;
+import com.xilinx.rapidwright.edif.EDIFCellInst;
+import com.xilinx.rapidwright.edif.EDIFNet;
+import com.xilinx.rapidwright.edif.EDIFNetlist;
+import com.xilinx.rapidwright.edif.EDIFTools;
+
+public class HierIndexBench {
+
+    /**
+     * Adds the hierarchical names of the nets below inst to nets, children before parents.
+     */
+    private static void collectNets(EDIFCellInst inst, String hier_name, List<String> nets){
+        if(inst.getCellType().isLeafCellOrBlackBox())
+            return;
+        String prefix = hier_name.isEmpty() ? "" : hier_name + EDIFTools.EDIF_HIER_SEP;
+        for(EDIFCellInst child : inst.getCellType().getCellInsts())
+            collectNets(child, prefix + child.getName(), nets);
+        if(!hier_name.isEmpty())
+            for(EDIFNet n : inst.getCellType().getNets())
+                nets.add(prefix + n.getName());
+    }
+
+    private static String parentName(String hier_name){
+        int sep = hier_name.lastIndexOf(EDIFTools.EDIF_HIER_SEP);
+        return sep < 0 ? "" : hier_name.substring(0, sep);
+    }
+
+    /**
+     * The lookups of one probe in my_updateProbeConnections() without the index.
+     */
+    private static long netlistLookups(Design d, List<String> probes){
+        EDIFNetlist n = d.getNetlist();
+        long found = 0;
+        for(String p : probes){
+            if(n.getCellInstFromHierName(parentName(p)) != null)
+                found++;
+            if(EDIFTools.getNet(n, p) != null)
+                found++;
+            Net net = d.getNet(n.getParentNetName(p));
+            if(net != null)
+                found++;
+        }
+        return found;
+    }
+
+    /**
+     * The same lookups through a new index.
+     */
+    private static long indexLookups(Design d, List<String> probes){
+        ILADebug.HierNameIndex index = new ILADebug.HierNameIndex(d);
+        long found = 0;
+        for(String p : probes){
+            if(index.getCellInst(parentName(p)) != null)
+                found++;
+            if(index.getNet(p) != null)
+                found++;
+            if(index.getParentNet(p) != null)
+                found++;
+        }
+        return found;
+    }
+
+    public static void main(String[] args){
+        String dcp = args.length > 0 ? args[0] : "tut_2_dsgn_wrapper_routed.dcp";
+        int probe_count = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int warmup = Math.max(1, iterations / 4);
+
+        Design d = Design.readCheckpoint(dcp);
+        List<String> nets = new ArrayList<>();
+        collectNets(d.getNetlist().getTopCellInst(), "", nets);
+        if(nets.isEmpty())
+            throw new RuntimeException("No hierarchical nets found in '" + dcp + "'.");
+        List<String> probes = new ArrayList<>();
+        for(int i = 0 ; i < probe_count ; i++)
+            probes.add(nets.get(i % nets.size()));
+
+        long netlist_ns = 0;
+        long index_ns = 0;
+        long netlist_found = 0;
+        long index_found = 0;
+        for(int i = -warmup ; i < iterations ; i++){
+            long start = System.nanoTime();
+            netlist_found = netlistLookups(d, probes);
+            long mid = System.nanoTime();
+            index_found = indexLookups(d, probes);
+            long end = System.nanoTime();
+            if(i >= 0){
+                netlist_ns += mid - start;
+                index_ns += end - mid;
+            }
+        }
+        if(netlist_found != index_found)
+            throw new RuntimeException("Index found " + index_found + " names, netlist found " + netlist_found + ".");
+
+        System.out.printf("dcp:              %s (%d distinct nets)%n", dcp, nets.size());
+        System.out.printf("probes:           %d%n", probe_count);
+        System.out.printf("iterations:       %d (+%d warmup)%n", iterations, warmup);
+        System.out.printf("netlist lookups:  %.3f ms / probe set%n", netlist_ns / 1e6 / iterations);
+        System.out.printf("index lookups:    %.3f ms / probe set (including index build)%n", index_ns / 1e6 / iterations);
+    }
+}
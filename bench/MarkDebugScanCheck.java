@@ -0,0 +1,60 @@
+/*
+ * Regression check for ILADebug.MarkDebugScanner on an edif with renamed names.
+ *
+ * Writes a small checkpoint whose library, cell, instance and net are renamed and checks that the
+ * scan finds the nets marked for debug by their original names. cellref and libraryref use the edif
+ * identifiers, so a cell known only by its original name would lose its marked nets.
+ *
+ * From the repository root:
+ *      compile: javac -cp .:$CLASSPATH -d bench ILADebug.java bench/MarkDebugScanCheck.java
+ *      run: java -cp bench:<RapidWright_dir>/RapidWright:$CLASSPATH MarkDebugScanCheck
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MarkDebugScanCheck {
+
+    private static final String EDIF = String.join("\n",
+            "(edif top",
+            "  (edifversion 2 0 0)",
+            "  (library (rename work_lib_ \"work\") (edifLevel 0) (technology (numberDefinition))",
+            "    (cell (rename sub_0_ \"sub[0]\") (celltype GENERIC)",
+            "      (view netlist (viewtype NETLIST) (interface)",
+            "        (contents (net (rename n_0_ \"n[0]\") (joined) (property MARK_DEBUG (string \"true\"))))))",
+            "    (cell pc (celltype GENERIC)",
+            "      (view netlist (viewtype NETLIST) (interface)",
+            "        (contents (net m (joined) (property MARK_DEBUG (string \"true\"))))))",
+            "    (cell top (celltype GENERIC)",
+            "      (view netlist (viewtype NETLIST) (interface)",
+            "        (contents",
+            "          (instance (rename u_0_ \"u[0]\") (viewref netlist (cellref sub_0_ (libraryref work_lib_))))",
+            "          (instance p (viewref netlist (cellref pc (libraryref work_lib_))))))))",
+            "  (design top (cellref top (libraryref work_lib_))))",
+            "");
+
+    public static void main(String[] args) throws IOException {
+        File dcp = File.createTempFile("mark_debug_scan_", ".dcp");
+        dcp.deleteOnExit();
+        try(ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(dcp))){
+            zos.putNextEntry(new ZipEntry("top.edf"));
+            zos.write(EDIF.getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+        }
+
+        List<String> expected = Arrays.asList("u[0]/n[0]", "p/m");
+        List<String> nets = new ILADebug.MarkDebugScanner().scan(dcp);
+        System.out.println("Scanned nets: " + nets);
+        if(!expected.equals(nets)){
+            System.out.println("FAILED: expected " + expected);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
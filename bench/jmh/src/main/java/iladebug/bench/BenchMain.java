@@ -0,0 +1,24 @@
+package iladebug.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing results as JSON to target/jmh-result.json unless a result
+ * format (-rf) or file (-rff) is given. All other arguments are passed to JMH.
+ */
+public class BenchMain {
+    public static void main(String[] args) throws Exception {
+        List<String> a = new ArrayList<>(Arrays.asList(args));
+        if(!a.contains("-rf")){
+            a.add("-rf");
+            a.add("json");
+        }
+        if(!a.contains("-rff")){
+            a.add("-rff");
+            a.add("target/jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(a.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,47 @@
+package iladebug.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xilinx.rapidwright.design.Design;
+
+/**
+ * ILADebug.setDefaultNet() on the checkpoint, starting from a new ILADebug (and so a new name index)
+ * each time, as a run does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DefaultNetBenchmark {
+    Design design;
+    List<String> nets;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        design = Design.readCheckpoint(Fixtures.dcp().getAbsolutePath());
+        nets = Fixtures.probeableNets(design);
+    }
+
+    @Benchmark
+    public String setDefaultNet(){
+        Ila ila = new Ila();
+        ila.setDesign(design);
+        return ila.setDefaultNet(nets);
+    }
+}
@@ -0,0 +1,60 @@
+package iladebug.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ILADebug.fixEdifInDCP() on a copy of the checkpoint (fixEdifInDCP deletes its input).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FixEdifBenchmark {
+    File dcp;
+    File in;
+    File out;
+    Ila ila;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dcp = Fixtures.dcp();
+        in = new File(Fixtures.dir(), "fix_edif_in.dcp");
+        out = new File(Fixtures.dir(), "fix_edif_out.dcp");
+        ila = new Ila();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyInput() throws IOException {
+        Files.copy(dcp.toPath(), in.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Benchmark
+    public boolean fixEdifInDCP(){
+        return ila.fixEdifInDCP(in.getAbsolutePath(), out.getAbsolutePath());
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp(){
+        in.delete();
+        out.delete();
+    }
+}
@@ -0,0 +1,101 @@
+package iladebug.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xilinx.rapidwright.design.Design;
+import com.xilinx.rapidwright.design.Net;
+import com.xilinx.rapidwright.edif.EDIFCellInst;
+import com.xilinx.rapidwright.edif.EDIFNet;
+import com.xilinx.rapidwright.edif.EDIFNetlist;
+import com.xilinx.rapidwright.edif.EDIFTools;
+
+/**
+ * Inputs shared by the benchmarks.
+ *
+ * System properties:
+ *      iladebug.dcp: design checkpoint. Default: the bundled tut_2_dsgn_wrapper_routed.dcp.
+ *      iladebug.intermediate_dcp: intermediate design (<design>_ila.dcp from a .iii directory) for
+ *          ProbeRoutingBenchmark. There is no default, it needs Vivado to make.
+ *      iladebug.fixtures: directory for generated files. Default: target/fixtures.
+ */
+final class Fixtures {
+    static final String ILA_PARENT = "top";
+    static final String PROBE_PREFIX = "top/u_ila_0/probe0[";
+
+    private Fixtures(){}
+
+    static File dcp(){
+        String dcp = System.getProperty("iladebug.dcp");
+        if(dcp != null)
+            return existing(new File(dcp));
+        // relative to bench/jmh, or to the repository root
+        File f = new File("../../tut_2_dsgn_wrapper_routed.dcp");
+        return existing(f.exists() ? f : new File("tut_2_dsgn_wrapper_routed.dcp"));
+    }
+
+    static File intermediateDcp(){
+        String dcp = System.getProperty("iladebug.intermediate_dcp");
+        if(dcp == null)
+            throw new IllegalStateException("Set -Diladebug.intermediate_dcp=<iii_dir>/<design>_ila.dcp "
+                    + "(made by a previous ILADebug run) to benchmark probe routing.");
+        return existing(new File(dcp));
+    }
+
+    static File dir() throws IOException {
+        File dir = new File(System.getProperty("iladebug.fixtures", "target/fixtures"));
+        Files.createDirectories(dir.toPath());
+        return dir;
+    }
+
+    private static File existing(File f){
+        if(!f.exists())
+            throw new IllegalStateException("Couldn't find '" + f.getAbsolutePath() + "'.");
+        return f;
+    }
+
+    /**
+     * Writes a probes file connecting probe wires 0 to probe_count-1 to the given nets, repeating
+     * them if there are fewer nets than probes.
+     */
+    static File probesFile(List<String> nets, int probe_count, String name) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Probe mapping: <full probe net path> -> <full debug net path>");
+        for(int i = 0 ; i < probe_count ; i++)
+            lines.add(PROBE_PREFIX + i + "] " + nets.get(i % nets.size()));
+        File f = new File(dir(), name + "_" + probe_count + ".txt");
+        Files.write(f.toPath(), lines);
+        return f;
+    }
+
+    /**
+     * @return Hierarchical names of the nets of the user design (not of the ila) that can be probed:
+     * nets whose physical parent net exists and is neither a static nor a clock net.
+     */
+    static List<String> probeableNets(Design d){
+        List<String> nets = new ArrayList<>();
+        for(EDIFCellInst child : d.getNetlist().getTopCell().getCellInsts())
+            if(!child.getName().equals(ILA_PARENT))
+                collectNets(d, child, child.getName(), nets);
+        if(nets.isEmpty())
+            throw new IllegalStateException("No probeable nets found in '" + d.getName() + "'.");
+        return nets;
+    }
+
+    private static void collectNets(Design d, EDIFCellInst inst, String hier_name, List<String> nets){
+        if(inst.getCellType().isLeafCellOrBlackBox())
+            return;
+        EDIFNetlist netlist = d.getNetlist();
+        for(EDIFNet n : inst.getCellType().getNets()){
+            String name = hier_name + EDIFTools.EDIF_HIER_SEP + n.getName();
+            Net phys = d.getNet(netlist.getParentNetName(name));
+            if(phys != null && !phys.isStaticNet() && !phys.isClockNet())
+                nets.add(name);
+        }
+        for(EDIFCellInst child : inst.getCellType().getCellInsts())
+            collectNets(d, child, hier_name + EDIFTools.EDIF_HIER_SEP + child.getName(), nets);
+    }
+}
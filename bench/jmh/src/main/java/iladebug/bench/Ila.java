@@ -0,0 +1,164 @@
+package iladebug.bench;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import com.xilinx.rapidwright.design.Design;
+
+/**
+ * Access to one ILADebug instance. ILADebug is in the default package, which can't be imported
+ * from a package (and JMH doesn't allow benchmarks in the default package), so its members are
+ * reached by reflection. Methods are looked up once, so a call costs about as much as a direct one.
+ */
+final class Ila {
+    static final Class<?> ILA_DEBUG = load("ILADebug");
+    static final Class<?> PROBE_MAP = load("ILADebug$ProbeMap");
+
+    private static final Method READ_MAP_FILE = method("readMapFile", String.class, String.class, boolean.class);
+    private static final Method READ_PROBES_FILE = method("readProbesFile", File.class, boolean.class);
+    private static final Method WRITE_PROBES_FILE = method("writeProbesFile", String.class);
+    private static final Method SET_DEFAULT_NET = method("setDefaultNet", Collection.class);
+    private static final Method FIX_EDIF_IN_DCP = method("fixEdifInDCP", String.class, String.class);
+    private static final Method UPDATE_PROBE_CONNECTIONS = method("my_updateProbeConnections", Design.class, PROBE_MAP);
+    private static final Method ILA_PROBE_WIDTH = method("getIlaProbeWidth", Design.class);
+    private static final Field DESIGN = field("design");
+    private static final Field DEFAULT_NET = field("default_net");
+    private static final Field PROBE_MAP_FIELD = field("probe_map");
+    private static final Field ARG_MAP = field("arg_map");
+
+    final Object ila_dbg;
+
+    Ila(){
+        try {
+            ila_dbg = ILA_DEBUG.getConstructor().newInstance();
+        } catch(ReflectiveOperationException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, String> readMapFile(String filename, String separator, boolean warn){
+        return (Map<String, String>) call(null, READ_MAP_FILE, filename, separator, warn);
+    }
+
+    static int getIlaProbeWidth(Design d){
+        return (Integer) call(null, ILA_PROBE_WIDTH, d);
+    }
+
+    /**
+     * @return An ILADebug.ProbeMap.
+     */
+    Object readProbesFile(File f, boolean set_default_net){
+        return call(ila_dbg, READ_PROBES_FILE, f, set_default_net);
+    }
+
+    void writeProbesFile(Object probe_map, String filename){
+        set(PROBE_MAP_FIELD, probe_map);
+        call(ila_dbg, WRITE_PROBES_FILE, filename);
+    }
+
+    String setDefaultNet(Collection<String> input_probes){
+        call(ila_dbg, SET_DEFAULT_NET, input_probes);
+        return getDefaultNet();
+    }
+
+    boolean fixEdifInDCP(String input_dcp, String output_dcp){
+        return (Boolean) call(ila_dbg, FIX_EDIF_IN_DCP, input_dcp, output_dcp);
+    }
+
+    /**
+     * @return An ILADebug.ProbeRouteResult.
+     */
+    Object updateProbeConnections(Design d, Object probe_map){
+        return call(ila_dbg, UPDATE_PROBE_CONNECTIONS, d, probe_map);
+    }
+
+    /**
+     * Sets a command line argument, as mapArgs() would for '--key value'. A null value removes it.
+     */
+    @SuppressWarnings("unchecked")
+    void setArg(String key, String value){
+        try {
+            Map<String, ArrayList<String>> arg_map = (Map<String, ArrayList<String>>) ARG_MAP.get(ila_dbg);
+            if(value == null)
+                arg_map.remove(key);
+            else
+                arg_map.put(key, new ArrayList<>(Collections.singletonList(value)));
+        } catch(IllegalAccessException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void setDesign(Design d){
+        set(DESIGN, d);
+    }
+
+    void setDefaultNet(String net){
+        set(DEFAULT_NET, net);
+    }
+
+    String getDefaultNet(){
+        try {
+            return (String) DEFAULT_NET.get(ila_dbg);
+        } catch(IllegalAccessException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void set(Field f, Object value){
+        try {
+            f.set(ila_dbg, value);
+        } catch(IllegalAccessException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object call(Object target, Method m, Object... args){
+        try {
+            return m.invoke(target, args);
+        } catch(IllegalAccessException e){
+            throw new IllegalStateException(e);
+        } catch(InvocationTargetException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static Class<?> load(String name){
+        try {
+            return Class.forName(name);
+        } catch(ClassNotFoundException e){
+            throw new IllegalStateException("ILADebug isn't on the class path.", e);
+        }
+    }
+
+    private static Method method(String name, Class<?>... params){
+        try {
+            Method m = ILA_DEBUG.getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return m;
+        } catch(NoSuchMethodException e){
+            throw new IllegalStateException("ILADebug." + name + " not found. Was ILADebug.java changed?", e);
+        }
+    }
+
+    private static Field field(String name){
+        try {
+            Field f = ILA_DEBUG.getDeclaredField(name);
+            f.setAccessible(true);
+            return f;
+        } catch(NoSuchFieldException e){
+            throw new IllegalStateException("ILADebug." + name + " not found. Was ILADebug.java changed?", e);
+        }
+    }
+}
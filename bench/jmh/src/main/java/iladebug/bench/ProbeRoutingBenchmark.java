@@ -0,0 +1,71 @@
+package iladebug.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xilinx.rapidwright.design.Design;
+
+/**
+ * ILADebug.my_updateProbeConnections() (connecting and routing probes) on a fresh copy of an intermediate
+ * design for each call. Needs -Diladebug.intermediate_dcp, see Fixtures. Probe counts above the width of
+ * the ila in the intermediate design are lowered to that width. The ila sink table is built on the
+ * first call and reused after, as it is when it is saved in .iii. A routeMargin of -1 routes on the whole
+ * device, others route inside the region around the ila and the probed drivers (ILADebug -m).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ProbeRoutingBenchmark {
+    @Param({"64", "512", "4096"})
+    int probes;
+
+    @Param({"-1", "8"})
+    int routeMargin;
+
+    File intermediate_dcp;
+    Ila ila;
+    Object probe_map;
+    Design design;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        intermediate_dcp = Fixtures.intermediateDcp();
+        Design d = Design.readCheckpoint(intermediate_dcp.getAbsolutePath());
+        int width = Ila.getIlaProbeWidth(d);
+        if(width < 1)
+            throw new IllegalStateException("No ila found in '" + intermediate_dcp.getAbsolutePath() + "'.");
+        List<String> nets = Fixtures.probeableNets(d);
+        File probes_file = Fixtures.probesFile(nets, Math.min(probes, width), "routing_probes");
+        ila = new Ila();
+        ila.setArg("route_margin", routeMargin < 0 ? null : Integer.toString(routeMargin));
+        probe_map = ila.readProbesFile(probes_file, false);
+    }
+
+    @Setup(Level.Invocation)
+    public void readDesign(){
+        design = Design.readCheckpoint(intermediate_dcp.getAbsolutePath());
+    }
+
+    @Benchmark
+    public Object updateProbeConnections(){
+        return ila.updateProbeConnections(design, probe_map);
+    }
+}
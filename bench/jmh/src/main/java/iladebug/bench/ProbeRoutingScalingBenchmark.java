@@ -0,0 +1,68 @@
+package iladebug.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xilinx.rapidwright.design.Design;
+
+/**
+ * Scaling of ILADebug.my_updateProbeConnections() with the number of routing threads (ILADebug -j),
+ * connecting 4096 probes (or as many as the ila in the intermediate design has) on a fresh copy of the
+ * intermediate design for each call. Needs -Diladebug.intermediate_dcp, see Fixtures.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ProbeRoutingScalingBenchmark {
+    static final int PROBES = 4096;
+
+    @Param({"1", "2", "4"})
+    int threads;
+
+    File intermediate_dcp;
+    Ila ila;
+    Object probe_map;
+    Design design;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        intermediate_dcp = Fixtures.intermediateDcp();
+        Design d = Design.readCheckpoint(intermediate_dcp.getAbsolutePath());
+        int width = Ila.getIlaProbeWidth(d);
+        if(width < 1)
+            throw new IllegalStateException("No ila found in '" + intermediate_dcp.getAbsolutePath() + "'.");
+        List<String> nets = Fixtures.probeableNets(d);
+        File probes_file = Fixtures.probesFile(nets, Math.min(PROBES, width), "scaling_probes");
+        ila = new Ila();
+        ila.setArg("jobs", Integer.toString(threads));
+        probe_map = ila.readProbesFile(probes_file, false);
+    }
+
+    @Setup(Level.Invocation)
+    public void readDesign(){
+        design = Design.readCheckpoint(intermediate_dcp.getAbsolutePath());
+    }
+
+    @Benchmark
+    public Object updateProbeConnections(){
+        return ila.updateProbeConnections(design, probe_map);
+    }
+}
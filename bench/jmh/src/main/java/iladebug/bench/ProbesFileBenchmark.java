@@ -0,0 +1,69 @@
+package iladebug.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xilinx.rapidwright.design.Design;
+
+/**
+ * Reading and writing probes files of 64, 512 and 4096 probes made from the nets of the checkpoint.
+ * readProbesFile checks the nets against the loaded design, as it does in a run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProbesFileBenchmark {
+    @Param({"64", "512", "4096"})
+    int probes;
+
+    File probes_file;
+    File output_file;
+    Ila ila;
+    Object probe_map;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Design d = Design.readCheckpoint(Fixtures.dcp().getAbsolutePath());
+        List<String> nets = Fixtures.probeableNets(d);
+        probes_file = Fixtures.probesFile(nets, probes, "probes");
+        output_file = new File(Fixtures.dir(), "probes_out_" + probes + ".txt");
+        ila = new Ila();
+        ila.setDesign(d);
+        ila.setDefaultNet(nets.get(0));
+        probe_map = ila.readProbesFile(probes_file, false);
+    }
+
+    @Benchmark
+    public Map<String, String> readMapFile(){
+        return Ila.readMapFile(probes_file.getAbsolutePath(), " ", false);
+    }
+
+    @Benchmark
+    public Object readProbesFile(){
+        return ila.readProbesFile(probes_file, false);
+    }
+
+    @Benchmark
+    public void writeProbesFile(){
+        ila.writeProbesFile(probe_map, output_file.getAbsolutePath());
+    }
+}